@@ -0,0 +1,273 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public class ApplicationManager implements IManager, Application.ActivityLifecycleCallbacks {
+	/*
+	 * A manager that lives as long as the process rather than a single Activity. 
+	 * Tasks and Daemons added here are attached to whichever Activity is currently 
+	 * in the foreground, and detached while none of them is. They are destroyed once the last 
+	 * Activity has finished, so that results held for a UI that is gone do not keep their budget forever.
+	 */
+	
+	public final static String TAG = "TaskManager_Application";
+	
+	private static ApplicationManager sInstance;
+	
+	protected final Object mLock = new Object();
+	
+    private Map<String, ITask> mTasks = new HashMap<String, ITask>();
+    private Map<String, IDaemon> mDaemons = new HashMap<String, IDaemon>();
+    
+    private final TaskQueue mQueue = new TaskQueue();
+    private final PendingBudget mBudget = new PendingBudget();
+    
+    private WeakReference<Activity> mActivity;
+    
+    /*
+     * Every Activity seen since this manager was created. Those created before it 
+     * are only known from the point they are started or resumed.
+     */
+    private final Map<Activity, Boolean> mActivities = new WeakHashMap<Activity, Boolean>();
+    
+    protected Boolean mUIAttached = false;
+    
+	private static void log(String aMethod, String aMessage) {
+		Utils.log("Application", aMethod, aMessage);
+	}
+	
+	public static ApplicationManager getInstance(Application aApplication) {
+		synchronized (ApplicationManager.class) {
+			if (sInstance == null) {
+				log("getInstance", "Attaching a new ApplicationManager to " + aApplication.getClass().getName());
+				
+				sInstance = new ApplicationManager();
+				aApplication.registerActivityLifecycleCallbacks(sInstance);
+				
+				MemoryTrimmer.register(sInstance, aApplication);
+			}
+			
+			return sInstance;
+		}
+	}
+	
+	private ApplicationManager() {}
+	
+	public Activity getActivity() {
+		synchronized (mLock) {
+			return mActivity != null ? mActivity.get() : null;
+		}
+	}
+	
+	@Override
+	public void onActivityResumed(Activity activity) {
+	    synchronized (mLock) {
+	    	mActivity = new WeakReference<Activity>(activity);
+	    	mActivities.put(activity, true);
+            mUIAttached = true;
+            mBudget.wake();
+            
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
+
+            if (mTasks.size() > 0) {
+            	log("onActivityResumed", "Announcing UI attachment to " + mTasks.size() + " tasks");
+            	
+	            for (String key : mTasks.keySet()) {
+	                mTasks.get(key).onAttachUI(this);
+	            }
+            }
+            
+            if (mDaemons.size() > 0) {
+            	log("onActivityResumed", "Announcing resume to " + mDaemons.size() + " daemons");
+            	
+	            for (String key : mDaemons.keySet()) {
+	            	mDaemons.get(key).onResume(this);
+	            }
+            }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
+	    }
+	    
+	    ObserverRegistry.attach(this);
+	}
+	
+	@Override
+	public void onActivityPaused(Activity activity) {
+	    synchronized (mLock) {
+	    	if (mActivity == null || mActivity.get() != activity) {
+	    		return;
+	    	}
+	    	
+            mUIAttached = false;
+            
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
+            
+            ObserverRegistry.detach(this);
+            
+            if (mTasks.size() > 0) {
+            	log("onActivityPaused", "Announcing UI detachment to " + mTasks.size() + " tasks");
+            	
+	            for (String key : mTasks.keySet()) {
+	                mTasks.get(key).onDetachUI();
+	            }
+            }
+            
+            if (mDaemons.size() > 0) {
+            	log("onActivityPaused", "Announcing pause to " + mDaemons.size() + " daemons");
+            	
+	            for (String key : mDaemons.keySet()) {
+	            	mDaemons.get(key).onPause();
+	            }
+            }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
+	    }
+	}
+	
+	@Override
+	public void onActivityDestroyed(Activity activity) {
+		Map<String, ITask> lTasks = null;
+		Map<String, IDaemon> lDaemons = null;
+		
+	    synchronized (mLock) {
+	    	if (mActivity != null && mActivity.get() == activity) {
+	    		mActivity = null;
+	    	}
+	    	
+	    	if (mActivities.remove(activity) != null && mActivities.size() == 0 && !activity.isChangingConfigurations() && (mTasks.size() > 0 || mDaemons.size() > 0)) {
+	    		log("onActivityDestroyed", "The last activity has finished, destroying " + mTasks.size() + " tasks and " + mDaemons.size() + " daemons");
+	    		
+	    		lTasks = mTasks;
+	    		lDaemons = mDaemons;
+	    		
+	    		mTasks = new HashMap<String, ITask>();
+	    		mDaemons = new HashMap<String, IDaemon>();
+	    	}
+	    }
+	    
+	    if (lTasks != null) {
+	    	ObserverRegistry.detach(this);
+	    	
+	    	ChildScope.destroy(lTasks, lDaemons);
+	    }
+	}
+	
+	@Override
+	public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+		synchronized (mLock) {
+			mActivities.put(activity, true);
+		}
+	}
+	
+	@Override
+	public void onActivityStarted(Activity activity) {
+		synchronized (mLock) {
+			mActivities.put(activity, true);
+		}
+	}
+	
+	@Override
+	public void onActivityStopped(Activity activity) {}
+	
+	@Override
+	public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+	
+    @Override
+    public void addTask(String aTag, ITask aTask) {
+        synchronized (mLock) {
+        	log("addTask", "Adding new task " + aTag);
+        	
+        	mTasks.put(aTag, aTask);
+        }
+    }
+    
+    @Override
+    public void removeTask(String aTag) {
+        synchronized (mLock) {
+        	log("removeTask", "Removing task " + aTag);
+        	
+            mTasks.remove(aTag);
+        }
+    }
+    
+    @Override
+    public ITask getTask(String aTag) {
+        synchronized (mLock) {
+        	return mTasks.get(aTag);
+        }
+    }
+    
+    @Override
+    public void addDaemon(String aTag, IDaemon aDaemon) {
+        synchronized (mLock) {
+        	log("addDaemon", "Adding daemon " + aTag);
+        	
+        	mDaemons.put(aTag, aDaemon);
+        }
+    }
+    
+    @Override
+    public void removeDaemon(String aTag) {
+        synchronized (mLock) {
+        	log("removeDaemon", "Removing daemon " + aTag);
+        	
+        	mDaemons.remove(aTag);
+        }
+    }
+    
+    @Override
+    public IDaemon getDaemon(String aTag) {
+        synchronized (mLock) {
+        	return mDaemons.get(aTag);
+        }
+    }
+
+    @Override
+    public Boolean isUIAttached() {
+    	return mUIAttached;
+    }
+    
+    @Override
+    public TaskQueue getTaskQueue() {
+    	return mQueue;
+    }
+    
+    @Override
+    public PendingBudget getPendingBudget() {
+    	return mBudget;
+    }
+
+    @Override
+    public void trimMemory(Integer aLevel) {
+    	MemoryTrimmer.trim(mLock, mTasks, mDaemons, aLevel);
+    }
+}
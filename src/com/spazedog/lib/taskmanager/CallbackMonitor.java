@@ -0,0 +1,146 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+public final class CallbackMonitor {
+	/*
+	 * Measures the user callbacks that the library runs on the main thread and reports 
+	 * those that take longer than the frame budget. When disabled, each callback only pays for a volatile read.
+	 */
+	
+	public final static String TAG = "CallbackMonitor";
+	
+	public static interface Listener {
+		public void onBudgetExceeded(String aTag, String aCallback, long aDurationMillis);
+	}
+	
+	private static volatile boolean sEnabled = false;
+	private static volatile long sBudget = 8000000L;
+	private static volatile Listener sListener;
+	
+	private final static AtomicLong sCallbacks = new AtomicLong();
+	private final static AtomicLong sExceeded = new AtomicLong();
+	private final static AtomicLong sWorst = new AtomicLong();
+	
+	private final static Map<String, Long> sExceededByCallback = new HashMap<String, Long>();
+	
+	private CallbackMonitor() {}
+	
+	public static void start(long aBudgetMillis, Listener aListener) {
+		sBudget = aBudgetMillis * 1000000L;
+		sListener = aListener;
+		sEnabled = true;
+	}
+	
+	public static void stop() {
+		sEnabled = false;
+	}
+	
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+	
+	public static void reset() {
+		sCallbacks.set(0);
+		sExceeded.set(0);
+		sWorst.set(0);
+		
+		synchronized (sExceededByCallback) {
+			sExceededByCallback.clear();
+		}
+	}
+	
+	public static long getCallbackCount() {
+		return sCallbacks.get();
+	}
+	
+	public static long getExceededCount() {
+		return sExceeded.get();
+	}
+	
+	public static long getExceededCount(String aCallback) {
+		synchronized (sExceededByCallback) {
+			Long lCount = sExceededByCallback.get(aCallback);
+			
+			return lCount != null ? lCount : 0;
+		}
+	}
+	
+	public static long getWorstDuration() {
+		return sWorst.get() / 1000000L;
+	}
+	
+	/*
+	 * Runs a user callback, recording it for the trace and measuring it against the budget
+	 */
+	static void invoke(String aCategory, String aCallback, String aTag, Runnable aCode) {
+		long lStart = begin();
+		TraceRecorder.begin(aCategory, aCallback, aTag);
+		
+		try {
+			aCode.run();
+			
+		} finally {
+			TraceRecorder.end(aCategory, aCallback, aTag);
+			end(lStart, aCallback, aTag);
+		}
+	}
+	
+	static long begin() {
+		return sEnabled ? System.nanoTime() : 0;
+	}
+	
+	static void end(long aStart, String aCallback, String aTag) {
+		if (aStart == 0) {
+			return;
+		}
+		
+		long lDuration = System.nanoTime() - aStart;
+		
+		sCallbacks.incrementAndGet();
+		
+		for (long lWorst = sWorst.get(); lDuration > lWorst && !sWorst.compareAndSet(lWorst, lDuration); lWorst = sWorst.get());
+		
+		if (lDuration > sBudget) {
+			sExceeded.incrementAndGet();
+			
+			synchronized (sExceededByCallback) {
+				Long lCount = sExceededByCallback.get(aCallback);
+				
+				sExceededByCallback.put(aCallback, lCount != null ? lCount + 1 : 1);
+			}
+			
+			Listener lListener = sListener;
+			
+			if (lListener != null) {
+				lListener.onBudgetExceeded(aTag, aCallback, lDuration / 1000000L);
+				
+			} else {
+				Log.w(TAG, "[" + aTag + "] " + aCallback + "() took " + (lDuration / 1000000L) + "ms");
+			}
+		}
+	}
+}
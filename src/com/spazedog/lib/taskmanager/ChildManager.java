@@ -22,11 +22,12 @@ package com.spazedog.lib.taskmanager;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 
 import android.annotation.TargetApi;
-import android.app.Activity;
 import android.app.Fragment;
 import android.os.Build;
+import android.os.Bundle;
 
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
 public class ChildManager extends Fragment implements IManager {
@@ -35,14 +36,19 @@ public class ChildManager extends Fragment implements IManager {
 	 * So we use a child manager on fragments and use the activity's manager to store our Task and Daemon instances
 	 */
 	
+	private final static String KEY_ID = "TaskManager_ChildScope_Id";
+	
 	public final static String TAG = "TaskManager_ChildFragment";
 	
 	private WeakReference<IParentManager> mManager;
 	
-	private String mName;
+	private String mId;
 	
     private Map<String, ITask> mTasks = new HashMap<String, ITask>();
     private Map<String, IDaemon> mDaemons = new HashMap<String, IDaemon>();
+    
+    private final TaskQueue mQueue = new TaskQueue();
+    private final PendingBudget mBudget = new PendingBudget();
 	
 	protected Boolean mUIAttached = false;
 	
@@ -53,10 +59,25 @@ public class ChildManager extends Fragment implements IManager {
 	}
     
     @Override
-    public void onAttach(Activity activity) {
-    	super.onAttach(activity);
+    public void onCreate(Bundle savedInstanceState) {
+    	super.onCreate(savedInstanceState);
+    	
+    	if (savedInstanceState != null) {
+    		mId = savedInstanceState.getString(KEY_ID);
+    	}
+    	
+    	if (mId == null) {
+    		mId = UUID.randomUUID().toString();
+    	}
     	
-    	mName = getParentFragment().getClass().getName();
+    	MemoryTrimmer.register(this, getActivity());
+    }
+    
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+    	super.onSaveInstanceState(outState);
+    	
+    	outState.putString(KEY_ID, mId);
     }
 	
     @Override
@@ -66,53 +87,67 @@ public class ChildManager extends Fragment implements IManager {
     	mManager = new WeakReference<IParentManager>((IParentManager) Utils.getManager(getActivity()));
     	
     	synchronized (mLock) {
-    		Map<String, ITask> tasks = mManager.get().getChildTasks(mName);
-    		if (tasks != null) {
-    			log("onStart", "Restoring " + tasks.size() + " tasks to the task list");
+    		ChildScope scope = mManager.get().getChildScope(mId);
+    		if (scope != null) {
+    			log("onStart", "Restoring " + scope.getTasks().size() + " tasks and " + scope.getDaemons().size() + " daemons to the task list");
     			
-    			for (String key : tasks.keySet()) {
-    				mTasks.put(key, tasks.remove(key));
-    			}
-    		}
-    		
-    		Map<String, IDaemon> daemons = mManager.get().getChildDaemons(mName);
-    		if (daemons != null) {
-    			log("onStart", "Restoring " + daemons.size() + " daemons to the task list");
-    			
-    			for (String key : daemons.keySet()) {
-    				mDaemons.put(key, daemons.remove(key));
-    			}
+    			mTasks = ChildScope.merge(scope.getTasks(), mTasks);
+    			mDaemons = ChildScope.merge(scope.getDaemons(), mDaemons);
     		}
     	}
     }
     
     @Override
     public void onStop() {
-    	super.onStart();
+    	super.onStop();
     	
     	synchronized (mLock) {
-	    	if (mTasks.size() > 0) {
-	    		log("onStop", "Saving " + mTasks.size() + " tasks to the parent TaskManager");
+	    	if (getActivity().isFinishing()) {
+	    		log("onStop", "The host is finishing, destroying " + mTasks.size() + " tasks and " + mDaemons.size() + " daemons");
+	    		
+	    		ChildScope.destroy(mTasks, mDaemons);
+	    		
+	    	} else if (mTasks.size() > 0 || mDaemons.size() > 0) {
+	    		log("onStop", "Saving " + mTasks.size() + " tasks and " + mDaemons.size() + " daemons to the parent TaskManager");
 	    		
-	    		mManager.get().addChildTasks(mName, mTasks);
+	    		mManager.get().addChildScope(mId, new ChildScope(mTasks, mDaemons));
+	    		
+		    	mTasks = new HashMap<String, ITask>();
+		    	mDaemons = new HashMap<String, IDaemon>();
 	    	}
-	    	
-	    	if (mDaemons.size() > 0)
-	    		log("onStop", "Saving " + mDaemons.size() + " daemons to the parent TaskManager");
-	    	
-	    		mManager.get().addChildDaemons(mName, mDaemons);
-	    	
-	    	mTasks = new HashMap<String, ITask>();
-	    	mDaemons = new HashMap<String, IDaemon>();
     	}
     }
     
+    /*
+     * Nested managers are not retained, so this is called on configuration changes as well as when the 
+     * host fragment is gone for good. In the latter case nothing will claim the scope parked in onStop(), so it is destroyed.
+     */
+    @Override
+    public void onDestroy() {
+    	super.onDestroy();
+    	
+    	if (mManager != null && mManager.get() != null && !getActivity().isChangingConfigurations()) {
+    		ChildScope lScope = mManager.get().getChildScope(mId);
+    		
+    		if (lScope != null) {
+    			log("onDestroy", "The host fragment is gone, destroying " + lScope.getTasks().size() + " tasks and " + lScope.getDaemons().size() + " daemons");
+    			
+    			lScope.destroy();
+    		}
+    	}
+    	
+    	mManager = null;
+    }
+    
     @Override
     public void onResume() {
     	super.onResume();
     	
 	    synchronized (mLock) {
             mUIAttached = true;
+            mBudget.wake();
+            
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
 
             if (mTasks.size() > 0) {
             	log("onResume", "Announcing UI attachment to " + mTasks.size() + " tasks");
@@ -129,7 +164,11 @@ public class ChildManager extends Fragment implements IManager {
 	            	mDaemons.get(key).onResume(this);
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
     	}
+    	
+    	ObserverRegistry.attach(this);
     }
     
     @Override
@@ -139,6 +178,10 @@ public class ChildManager extends Fragment implements IManager {
 	    synchronized (mLock) {
             mUIAttached = false;
             
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
+            
+            ObserverRegistry.detach(this);
+            
             if (mTasks.size() > 0) {
             	log("onPause", "Announcing UI detachment to " + mTasks.size() + " tasks");
             	
@@ -154,6 +197,8 @@ public class ChildManager extends Fragment implements IManager {
 	            	mDaemons.get(key).onPause();
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
     	}
     }
 
@@ -211,4 +256,19 @@ public class ChildManager extends Fragment implements IManager {
     public Boolean isUIAttached() {
     	return mUIAttached;
     }
+    
+    @Override
+    public TaskQueue getTaskQueue() {
+    	return mQueue;
+    }
+    
+    @Override
+    public PendingBudget getPendingBudget() {
+    	return mBudget;
+    }
+
+    @Override
+    public void trimMemory(Integer aLevel) {
+    	MemoryTrimmer.trim(mLock, mTasks, mDaemons, aLevel);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+public class ChildScope {
+	/*
+	 * The Task and Daemon maps of a ChildManager, handed to the parent manager as they are 
+	 * while the child fragment is stopped, and handed back to the next instance of it.
+	 */
+	
+	private final Map<String, ITask> mTasks;
+	private final Map<String, IDaemon> mDaemons;
+	
+	public ChildScope(Map<String, ITask> aTasks, Map<String, IDaemon> aDaemons) {
+		mTasks = aTasks;
+		mDaemons = aDaemons;
+	}
+	
+	public Map<String, ITask> getTasks() {
+		return mTasks;
+	}
+	
+	public Map<String, IDaemon> getDaemons() {
+		return mDaemons;
+	}
+	
+	public Boolean isEmpty() {
+		return mTasks.size() == 0 && mDaemons.size() == 0;
+	}
+	
+	/*
+	 * Called when the child fragment will not be coming back
+	 */
+	public void destroy() {
+		destroy(mTasks, mDaemons);
+	}
+	
+	/*
+	 * Cancels every Task and stops every Daemon in the maps, and clears them. 
+	 * Works on copies, as Tasks and Daemons may remove themselves from the maps while being destroyed.
+	 */
+	static void destroy(Map<String, ITask> aTasks, Map<String, IDaemon> aDaemons) {
+		ArrayList<ITask> lTasks = new ArrayList<ITask>(aTasks.values());
+		ArrayList<IDaemon> lDaemons = new ArrayList<IDaemon>(aDaemons.values());
+		
+		aTasks.clear();
+		aDaemons.clear();
+		
+		for (ITask lTask : lTasks) {
+			lTask.onDestroy();
+		}
+		
+		for (IDaemon lDaemon : lDaemons) {
+			lDaemon.onDestroy();
+		}
+	}
+	
+	/*
+	 * Anything added to the new instance before it was started is moved into the restored map, 
+	 * which is usually the larger one. Restored entries win on conflicts.
+	 */
+	static <T> Map<String, T> merge(Map<String, T> aRestored, Map<String, T> aCurrent) {
+		for (String key : aCurrent.keySet()) {
+			if (!aRestored.containsKey(key)) {
+				aRestored.put(key, aCurrent.get(key));
+			}
+		}
+		
+		return aRestored;
+	}
+}
@@ -19,12 +19,16 @@
 
 package com.spazedog.lib.taskmanager;
 
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.os.Build;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 
 public abstract class Daemon<Params, Result> implements IDaemon {
 	
@@ -49,8 +53,42 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 	
 	private Integer mTimeout = 1000;
 	private Integer mDelay = 0;
+	private Integer mSlack = 0;
+	private Boolean mAutoThrottle = false;
+	private Integer mPriority = 0;
 	
-	private ArrayList<Runnable> mPendingMethods = new ArrayList<Runnable>();
+	private ISizeEstimator<Result> mEstimator;
+	
+	private Integer mMaxPending = 0;
+	private Integer mUndelivered = 0;
+	private Boolean mBlocking = false;
+	
+	private Integer mThrottle = 0;
+	private long mThrottled = 0;
+	
+	private Integer mDebounce = 0;
+	private Result mDebounced;
+	
+	private Equality<Result> mEquality;
+	private Result mDelivered;
+	private Boolean mHasDelivered = false;
+	
+	private final Runnable mDebounceTask = new Runnable() {
+		public void run() {
+			Result lResult;
+			
+			synchronized (mLock) {
+				lResult = mDebounced;
+				mDebounced = null;
+			}
+			
+			deliver(lResult, false);
+		}
+	};
+	
+	private ArrayList<Delivery> mPendingMethods = new ArrayList<Delivery>();
+	
+	private Delivery mDeliveryPool;
 	
 	private static void log(String aMethod, String aMessage) {
 		Utils.log(TAG, aMethod, aMessage);
@@ -98,6 +136,17 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		return null;
 	}
 	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public final static IDaemon getDaemon(android.app.Application aApplication, String aTag) {
+		IManager lManager = Utils.getManager(aApplication);
+		
+		if (lManager != null) {
+			return lManager.getDaemon(aTag);
+		}
+		
+		return null;
+	}
+	
 	public Daemon(android.support.v4.app.Fragment aFragment, String aTag) {
 		log("construct", "[" + aTag + "] Initiating a new Daemon");
 		
@@ -132,9 +181,20 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		mTag = aTag;
 	}
 	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public Daemon(android.app.Application aApplication, String aTag) {
+		log("construct", "[" + aTag + "] Initiating a new Daemon");
+		
+		mManager = new WeakReference<IManager>(Utils.getManager(aApplication));
+		mTag = aTag;
+	}
+	
 	@SuppressLint("NewApi")
 	public Object getActivityObject() {
         if (mManager != null) {
+        	if (mManager.get() instanceof ApplicationManager)
+        		return ((ApplicationManager) mManager.get()).getActivity();
+        	
 		    if (mSupport) 
 			    return ((android.support.v4.app.Fragment) mManager.get()).getActivity();
 		
@@ -166,39 +226,206 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 	protected abstract void doInBackground(Params... params);
 	protected void receiver(Result result) {}
 	
-	protected final void sendToReceiver(final Result result) {
-        run(new Runnable() {
-            public void run() {
-                Daemon.this.receiver(result);
-            }
-        });
+	protected final Boolean sendToReceiver(Result result) {
+		synchronized (mLock) {
+			if ((int) mThrottle > 0) {
+				long lNow = SystemClock.uptimeMillis();
+				
+				if (lNow - mThrottled < mThrottle) {
+					return false;
+				}
+				
+				mThrottled = lNow;
+			}
+			
+			if ((int) mDebounce > 0) {
+				mDebounced = result;
+				
+				Utils.getHandler().removeCallbacks(mDebounceTask);
+				Utils.getHandler().postDelayed(mDebounceTask, mDebounce);
+				
+				return true;
+			}
+		}
+		
+		return deliver(result, mBlocking);
 	}
 	
-	private void run(Runnable aCode) {
+	private Boolean deliver(final Result result, Boolean aBlock) {
+		ISizeEstimator<Result> lEstimator = mEstimator;
+		long lSize = lEstimator != null && result != null ? lEstimator.sizeOf(result) : 0;
+		
+		if (lSize > 0 && Looper.myLooper() != Looper.getMainLooper()) {
+			IManager lManager = mManager != null ? mManager.get() : null;
+			
+			if (lManager != null) {
+				try {
+					lManager.getPendingBudget().await(lSize, lManager, mTag);
+					
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					
+					return false;
+				}
+			}
+		}
+		
+		synchronized (mLock) {
+			if (mEquality != null && mHasDelivered && mEquality.isEqual(mDelivered, result)) {
+				return false;
+			}
+			
+			while (isSaturated()) {
+				if (!aBlock || mThread == null) {
+					log("sendToReceiver", "[" + mTag + "] The receiver has " + mUndelivered + " undelivered results, rejecting this one");
+					
+					return false;
+				}
+				
+				try {
+					mLock.wait();
+					
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			
+			mUndelivered += 1;
+			
+			if (mEquality != null) {
+				mDelivered = result;
+				mHasDelivered = true;
+			}
+		}
+		
+        run(obtainDelivery(result, lSize));
+        
+        return true;
+	}
+	
+	private Boolean isSaturated() {
+		return (int) mMaxPending > 0 && mUndelivered >= mMaxPending;
+	}
+	
+	private Delivery obtainDelivery(Result aResult, long aSize) {
+		synchronized (mLock) {
+			Delivery lDelivery = mDeliveryPool;
+			
+			if (lDelivery != null) {
+				mDeliveryPool = lDelivery.mNext;
+				lDelivery.mNext = null;
+				
+			} else {
+				lDelivery = new Delivery();
+			}
+			
+			lDelivery.mResult = aResult;
+			lDelivery.mSize = aSize;
+			
+			return lDelivery;
+		}
+	}
+	
+	private void recycleDelivery(Delivery aDelivery) {
+		synchronized (mLock) {
+			if (aDelivery.mBudget != null) {
+				aDelivery.mBudget.release(aDelivery.mSize);
+			}
+			
+			aDelivery.mResult = null;
+			aDelivery.mSpilled = null;
+			aDelivery.mBudget = null;
+			aDelivery.mSize = 0;
+			aDelivery.mNext = mDeliveryPool;
+			
+			mDeliveryPool = aDelivery;
+		}
+	}
+	
+	private void onDelivered() {
+		synchronized (mLock) {
+			mUndelivered -= 1;
+			mLock.notifyAll();
+		}
+	}
+	
+	private void run(Delivery aCode) {
 		synchronized (mLock) {
 			if (mPendingMethods.size() > 0 || mManager == null || !mManager.get().isUIAttached()) {
+				TraceRecorder.instant(TraceRecorder.CATEGORY_DAEMON, "pending.enqueue", mTag);
+				
+				if (!hold(aCode)) {
+					return;
+				}
+				
 				mPendingMethods.add(aCode);
 				
 			} else {
-				if (mSupport) {
-					((android.support.v4.app.FragmentActivity) getActivityObject()).runOnUiThread(aCode);
-					
-				} else {
-					((android.app.Activity) getActivityObject()).runOnUiThread(aCode);
-				}
+				Utils.runOnUiThread(aCode);
 			}
 		}
 	}
 	
+	/*
+	 * Counts a pending result against the manager's budget. Returns false if the result was dropped
+	 */
+	private Boolean hold(Delivery aDelivery) {
+		IManager lManager = mManager != null ? mManager.get() : null;
+		
+		if (aDelivery.mSize <= 0 || aDelivery.mBudget != null || aDelivery.mSpilled != null || lManager == null) {
+			return true;
+		}
+		
+		PendingBudget lBudget = lManager.getPendingBudget();
+		Integer lState = lBudget.reserve(aDelivery.mSize, mTag);
+		
+		while (lState == PendingBudget.DROPPED && mPendingMethods.size() > 0) {
+			log("hold", "[" + mTag + "] The pending budget is exhausted, dropping the oldest undelivered result");
+			
+			recycleDelivery(mPendingMethods.remove(0));
+			
+			mUndelivered -= 1;
+			lState = lBudget.reserve(aDelivery.mSize, mTag);
+		}
+		
+		if (lState == PendingBudget.DROPPED) {
+			log("hold", "[" + mTag + "] The pending budget is exhausted, dropping this result");
+			
+			recycleDelivery(aDelivery);
+			
+			mUndelivered -= 1;
+			mLock.notifyAll();
+			
+			return false;
+			
+		} else if (lState == PendingBudget.SPILLED) {
+			aDelivery.mSpilled = new SoftReference<Result>(aDelivery.mResult);
+			aDelivery.mResult = null;
+			
+		} else {
+			aDelivery.mBudget = lBudget;
+		}
+		
+		mLock.notifyAll();
+		
+		return true;
+	}
+	
 	private void runPending() {
 		synchronized (mLock) {
 			if (mPendingMethods.size() > 0) {
-				ArrayList<Runnable> pending = mPendingMethods;
-				mPendingMethods = new ArrayList<Runnable>();
+				ArrayList<Delivery> pending = mPendingMethods;
+				mPendingMethods = new ArrayList<Delivery>();
+				
+				TraceRecorder.instant(TraceRecorder.CATEGORY_DAEMON, "pending.drain", mTag);
+				
+				TraceRecorder.begin(TraceRecorder.CATEGORY_DAEMON, "runPending", mTag);
 				
 				while (pending.size() > 0) {
 					run(pending.remove(0));
 				}
+				
+				TraceRecorder.end(TraceRecorder.CATEGORY_DAEMON, "runPending", mTag);
 			}
 		}
 	}
@@ -216,6 +443,93 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		return this;
 	}
 	
+	public final Daemon<Params, Result> setSlack(Integer aPercent) {
+		mSlack = aPercent;
+		
+		return this;
+	}
+	
+	/*
+	 * While the main thread is missing frames, the daemon thread drops to background priority and holds back 
+	 * its next iteration until the UI has been quiet for a moment. Requires API 16 and takes effect on the next start().
+	 */
+	public final Daemon<Params, Result> setAutoThrottle(Boolean aEnabled) {
+		mAutoThrottle = aEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+		
+		return this;
+	}
+	
+	/*
+	 * Long running work in doInBackground() can poll this to back off while the UI is missing frames. 
+	 * Always returns false unless auto throttling is enabled.
+	 */
+	protected final Boolean shouldYield() {
+		return mAutoThrottle && FrameMonitor.isBusy();
+	}
+	
+	public final Daemon<Params, Result> setPriority(Integer aPriority) {
+		mPriority = aPriority;
+		
+		return this;
+	}
+	
+	public final Integer getPriority() {
+		return mPriority;
+	}
+	
+	/*
+	 * Results held back while the UI is detached are counted against the manager's PendingBudget using this estimator
+	 */
+	public final Daemon<Params, Result> setSizeEstimator(ISizeEstimator<Result> aEstimator) {
+		mEstimator = aEstimator;
+		
+		return this;
+	}
+	
+	public final Daemon<Params, Result> setMaxPending(Integer aLimit) {
+		return setMaxPending(aLimit, false);
+	}
+	
+	public final Daemon<Params, Result> setMaxPending(Integer aLimit, Boolean aBlock) {
+		synchronized (mLock) {
+			mMaxPending = aLimit;
+			mBlocking = aBlock;
+			mLock.notifyAll();
+		}
+		
+		return this;
+	}
+	
+	public final Daemon<Params, Result> setThrottle(Integer aInterval) {
+		mThrottle = aInterval;
+		
+		return this;
+	}
+	
+	public final Daemon<Params, Result> setDebounce(Integer aInterval) {
+		mDebounce = aInterval;
+		
+		return this;
+	}
+	
+	public final Daemon<Params, Result> setDistinct() {
+		return setDistinct(new Equality<Result>() {
+			public Boolean isEqual(Result aPrevious, Result aNext) {
+				return aPrevious == null ? aNext == null : aPrevious.equals(aNext);
+			}
+		});
+	}
+	
+	public final Daemon<Params, Result> setDistinct(Equality<Result> aEquality) {
+		synchronized (mLock) {
+			mEquality = aEquality;
+			mDelivered = null;
+			mHasDelivered = false;
+		}
+		
+		return this;
+	}
+	
 	public final void destroy() {
 		synchronized (mLock) {
             if (mManager != null) {
@@ -228,18 +542,68 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		}
 	}
 	
+	/*
+	 * The host is finishing for good, so the thread is stopped rather than left paused
+	 */
+	@Override
+	public final void onDestroy() {
+		log("onDestroy", "[" + mTag + "] The host is finishing, stopping the daemon");
+		
+		synchronized (mLock) {
+			stop();
+			
+			mManager = null;
+		}
+	}
+	
+	@Override
+	public final void onTrimMemory(Integer aLevel) {
+		if (MemoryTrimmer.isCritical(aLevel) && mPriority < 0) {
+			log("onTrimMemory", "[" + mTag + "] Stopping low priority daemon");
+			
+			stop();
+			
+		} else if (MemoryTrimmer.isLow(aLevel)) {
+			synchronized (mLock) {
+				if (mPendingMethods.size() > 1) {
+					log("onTrimMemory", "[" + mTag + "] Trimming " + (mPendingMethods.size() - 1) + " pending results");
+					
+					while (mPendingMethods.size() > 1) {
+						recycleDelivery(mPendingMethods.remove(0));
+						
+						mUndelivered -= 1;
+					}
+					
+					mLock.notifyAll();
+				}
+			}
+		}
+	}
+	
 	public final void stop() {
 		synchronized (mLock) {
 			if (mThread != null) {
 				mThread.sendStop();
+				
+				Governor.remove(mThread.mLauncher);
 			}
 			
 			mThread = null;
 			mParams = null;
 			
+			mUndelivered -= mPendingMethods.size();
+			
+			Utils.getHandler().removeCallbacks(mDebounceTask);
+			
+			mDebounced = null;
+			mDelivered = null;
+			mHasDelivered = false;
+			
 			while (mPendingMethods.size() > 0) {
-				mPendingMethods.remove(0);
+				recycleDelivery(mPendingMethods.remove(0));
 			}
+			
+			mLock.notifyAll();
 		}
 	}
 	
@@ -247,7 +611,8 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		synchronized (mLock) {
 			if (mThread == null && mManager != null && mManager.get() != null && (mManager.get().getDaemon(mTag) == null || mStarted)) {
 				mThread = new DaemonThread(mTimeout, mDelay);
-				mThread.start();
+				
+				Governor.submit(mTag, mThread.mLauncher);
 				
 				mParams = params;
 
@@ -301,13 +666,100 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 		}
 	}
 	
+    /*
+     * Results are sent to the UI thread constantly, so the runnables carrying them 
+     * are recycled rather than allocated for each result
+     */
+    private final class Delivery implements Runnable {
+    	private Result mResult;
+    	private SoftReference<Result> mSpilled;
+    	private PendingBudget mBudget;
+    	private long mSize;
+    	private Delivery mNext;
+    	
+    	private Result mDelivered;
+    	
+    	private final Runnable mCallback = new Runnable() {
+    		public void run() {
+    			Daemon.this.receiver(mDelivered);
+    		}
+    	};
+    	
+    	public void run() {
+    		Result lResult = mResult;
+    		Boolean lLost = false;
+    		
+    		if (mSpilled != null) {
+    			lResult = mSpilled.get();
+    			lLost = lResult == null;
+    		}
+    		
+    		recycleDelivery(this);
+    		
+    		if (lLost) {
+    			log("run", "[" + mTag + "] A spilled result was reclaimed before it could be delivered, skipping it");
+    			
+    		} else {
+    			/*
+    			 * mDelivered is only touched on the main thread and is read as receiver() is called, 
+    			 * so it does not matter that this instance may already have been handed out again
+    			 */
+    			mDelivered = lResult;
+    			
+    			CallbackMonitor.invoke(TraceRecorder.CATEGORY_DAEMON, "receiver", mTag, mCallback);
+    			
+    			mDelivered = null;
+    		}
+    		
+    		Daemon.this.onDelivered();
+    	}
+    }
+    
+    public interface Equality<T> {
+    	public Boolean isEqual(T aPrevious, T aNext);
+    }
+    
     private final class DaemonThread extends Thread {
         private Boolean mPaused = false;
         private Boolean mRunning = false;
         private Boolean mStopped = false;
+        private Boolean mMonitoring = false;
+        private int mThreadPriority;
+        
+        /*
+         * The Governor slot held by this thread. It is handed back while the daemon is parked, 
+         * and a new one is requested through mResumer before it continues.
+         */
+        private Runnable mPermit;
+        private Boolean mHolding = false;
+        private Boolean mResuming = false;
 
         private Object mLock = new Object();
         
+        private final Runnable mLauncher = new Runnable() {
+        	public void run() {
+        		DaemonThread.this.start();
+        	}
+        };
+        
+        private final Runnable mResumer = new Runnable() {
+        	public void run() {
+        		synchronized (mLock) {
+        			if (mResuming && !mHolding) {
+        				mResuming = false;
+        				mHolding = true;
+        				mPermit = mResumer;
+        				mPaused = false;
+        				mLock.notifyAll();
+        				
+        				return;
+        			}
+        		}
+        		
+        		Governor.release(mResumer);
+        	}
+        };
+        
         public DaemonThread(Integer aTimeout, Integer aDelay) {
         	mTimeout = aTimeout;
         	mDelay = aDelay;
@@ -315,38 +767,65 @@ public abstract class Daemon<Params, Result> implements IDaemon {
         
         public void sendStop() {
         	synchronized (mLock) {
-        		if (mRunning) {
-	        		if (mPaused) {
-	        			sendResume();
-	        		}
-	        		
-	        		mStopped = true;
-        		}
+        		mStopped = true;
+        		mPaused = false;
+        		mResuming = false;
+        		mLock.notifyAll();
         	}
+        	
+        	Governor.remove(mResumer);
         }
         
         public void sendPause() {
         	synchronized (mLock) {
         		if (mRunning) {
         			mPaused = true;
+        			mResuming = false;
         		}
         	}
+        	
+        	Governor.remove(mResumer);
         }
         
         public void sendResume() {
         	synchronized (mLock) {
-        		if (mRunning) {
-	        		mPaused = false;
-	        		mLock.notifyAll();
+        		if (!mRunning || !mPaused) {
+        			return;
+        		}
+        		
+        		if (mHolding) {
+        			/*
+        			 * Not parked yet, so the slot is still ours
+        			 */
+        			mPaused = false;
+        			mLock.notifyAll();
+        			
+        			return;
+        		}
+        		
+        		if (mResuming) {
+        			return;
         		}
+        		
+        		mResuming = true;
         	}
+        	
+        	Governor.submit(mTag, mResumer);
         }
         
         @Override
         public void run() {
         	log("run", "[" + mTag + "] Starting the daemon");
         	
-        	mRunning = true;
+        	synchronized (mLock) {
+        		mRunning = true;
+        		mHolding = true;
+        		mPermit = mLauncher;
+        	}
+        	
+        	mThreadPriority = Process.getThreadPriority(Process.myTid());
+        	
+        	setMonitoring(Daemon.this.mAutoThrottle);
         	
             try {
 				while (!mStopped) {
@@ -355,32 +834,105 @@ public abstract class Daemon<Params, Result> implements IDaemon {
 						
 						mDelay = 0;
 					}
+					
+					if (mMonitoring) {
+						yieldToFrames();
+					}
                 	
+					TraceRecorder.begin(TraceRecorder.CATEGORY_DAEMON, "iteration", mTag);
+					
 					Daemon.this.doInBackground(Daemon.this.mParams);
+					
+					TraceRecorder.end(TraceRecorder.CATEGORY_DAEMON, "iteration", mTag);
                 	
-                	Thread.sleep(Daemon.this.mTimeout);
+                	if ((int) Daemon.this.mSlack > 0) {
+                		DaemonScheduler.await(Daemon.this.mTimeout, (Daemon.this.mTimeout * Daemon.this.mSlack) / 100);
+                		
+                	} else {
+                		Thread.sleep(Daemon.this.mTimeout);
+                	}
                 	
                 	synchronized (mLock) {
-                		while (mPaused) {
-                			try {
-                				log("run", "[" + mTag + "] Pausing the daemon");
-                				
-                				mLock.wait();
+                		if (mPaused) {
+                			log("run", "[" + mTag + "] Pausing the daemon");
+                			
+                			setMonitoring(false);
+                			
+                			mHolding = false;
+                			Governor.release(mPermit);
+                			
+                			while (mPaused) {
+                				try {
+                					mLock.wait();
+                					
+                				} catch (InterruptedException e) {}
+                			}
+                			
+                			if (!mStopped) {
+                				setMonitoring(Daemon.this.mAutoThrottle);
                 				
                 				log("run", "[" + mTag + "] Resuming the daemon");
-                				
-                			} catch (InterruptedException e) {}
+                			}
+                		}
+                	}
+                	
+                	synchronized (Daemon.this.mLock) {
+                		while (!mStopped && Daemon.this.isSaturated()) {
+                			log("run", "[" + mTag + "] The receiver is falling behind, holding back the next iteration");
+                			
+                			Daemon.this.mLock.wait();
                 		}
                 	}
                 }
-				
-				this.join();
                 
             } catch (InterruptedException e) {}
             
             log("run", "[" + mTag + "] Stopping the daemon");
             
-            mRunning = false;
+            Boolean lHolding;
+            
+            synchronized (mLock) {
+            	mRunning = false;
+            	lHolding = mHolding;
+            	mHolding = false;
+            }
+            
+            setMonitoring(false);
+            
+            if (lHolding) {
+            	Governor.release(mPermit);
+            }
+        }
+        
+        private void setMonitoring(Boolean aEnabled) {
+        	if (aEnabled && !mMonitoring) {
+        		FrameMonitor.acquire();
+        		
+        	} else if (!aEnabled && mMonitoring) {
+        		FrameMonitor.release();
+        	}
+        	
+        	mMonitoring = aEnabled;
+        }
+        
+        private void yieldToFrames() throws InterruptedException {
+        	if (FrameMonitor.isBusy()) {
+        		log("run", "[" + mTag + "] The UI is missing frames, holding back the next iteration");
+        		TraceRecorder.begin(TraceRecorder.CATEGORY_DAEMON, "yield", mTag);
+        		
+        		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        		
+        		try {
+	        		for (long lRemaining = FrameMonitor.getBusyRemaining(); !mStopped && lRemaining > 0; lRemaining = FrameMonitor.getBusyRemaining()) {
+	        			Thread.sleep(lRemaining);
+	        		}
+	        		
+        		} finally {
+        			Process.setThreadPriority(mThreadPriority);
+        			
+        			TraceRecorder.end(TraceRecorder.CATEGORY_DAEMON, "yield", mTag);
+        		}
+        	}
         }
     }
 }
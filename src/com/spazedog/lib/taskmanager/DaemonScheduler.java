@@ -0,0 +1,148 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+
+final class DaemonScheduler {
+	/*
+	 * A single timer thread shared by all Daemons with a slack window.
+	 * It sleeps until the latest allowed deadline of the most urgent daemon and 
+	 * then releases every daemon whose window has opened, so that daemons with 
+	 * compatible intervals are woken together rather than one by one.
+	 */
+	
+	private final static Integer IDLE_TIMEOUT = 30000;
+	
+	private final static Object sLock = new Object();
+	
+	private final static ArrayList<Tick> sTicks = new ArrayList<Tick>();
+	
+	private static SchedulerThread sThread;
+	
+	private DaemonScheduler() {}
+	
+	public static void await(Integer aTimeout, Integer aSlack) throws InterruptedException {
+		long lNow = SystemClock.uptimeMillis();
+		Tick lTick = new Tick(lNow + aTimeout - aSlack, lNow + aTimeout + aSlack);
+		
+		synchronized (sLock) {
+			sTicks.add(lTick);
+			
+			if (sThread == null) {
+				sThread = new SchedulerThread();
+				sThread.start();
+				
+			} else {
+				sLock.notifyAll();
+			}
+		}
+		
+		try {
+			synchronized (lTick) {
+				while (!lTick.mFired) {
+					lTick.wait();
+				}
+			}
+			
+		} catch (InterruptedException e) {
+			synchronized (sLock) {
+				sTicks.remove(lTick);
+			}
+			
+			throw e;
+		}
+	}
+	
+	private final static class Tick {
+		private final long mEarliest;
+		private final long mLatest;
+		
+		private Boolean mFired = false;
+		
+		public Tick(long aEarliest, long aLatest) {
+			mEarliest = aEarliest;
+			mLatest = aLatest;
+		}
+		
+		public void fire() {
+			synchronized (this) {
+				mFired = true;
+				notifyAll();
+			}
+		}
+	}
+	
+	private final static class SchedulerThread extends Thread {
+		public SchedulerThread() {
+			super("TaskManager.DaemonScheduler");
+			
+			setDaemon(true);
+		}
+		
+		@Override
+		public void run() {
+			synchronized (sLock) {
+				try {
+					while (true) {
+						if (sTicks.size() == 0) {
+							sLock.wait(IDLE_TIMEOUT);
+							
+							if (sTicks.size() == 0) {
+								break;
+							}
+						}
+						
+						long lNow = SystemClock.uptimeMillis();
+						long lWake = Long.MAX_VALUE;
+						
+						for (int i=0; i < sTicks.size(); i++) {
+							if (sTicks.get(i).mLatest < lWake) {
+								lWake = sTicks.get(i).mLatest;
+							}
+						}
+						
+						if (lWake > lNow) {
+							sLock.wait(lWake - lNow);
+							
+						} else {
+							for (int i=sTicks.size()-1; i >= 0; i--) {
+								if (sTicks.get(i).mEarliest <= lNow) {
+									sTicks.remove(i).fire();
+								}
+							}
+						}
+					}
+					
+				} catch (InterruptedException e) {}
+				
+				sThread = null;
+				
+				for (int i=0; i < sTicks.size(); i++) {
+					sTicks.get(i).fire();
+				}
+				
+				sTicks.clear();
+			}
+		}
+	}
+}
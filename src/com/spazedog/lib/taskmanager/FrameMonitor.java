@@ -0,0 +1,155 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+final class FrameMonitor {
+	/*
+	 * Watches main thread frame timing through Choreographer while at least one Daemon has asked for it. 
+	 * A frame that arrives later than 1.5 frame intervals after the previous one counts as missed, 
+	 * and the UI is considered busy until no frame has been missed for QUIET_PERIOD milliseconds. 
+	 * 
+	 * Each frame callback keeps vsync running, so sampling stops after QUIET_FRAMES frames without a miss. 
+	 * It is started again the next time a Daemon asks whether the UI is busy.
+	 * 
+	 * Only touch this class after checking for API 16, as loading it creates a Choreographer.FrameCallback.
+	 */
+	
+	private final static long QUIET_PERIOD = 250;
+	private final static long MIN_INTERVAL = 4000000L;
+	private final static int QUIET_FRAMES = 30;
+	
+	private final static Object sLock = new Object();
+	
+	private static int sUsers = 0;
+	private static volatile boolean sSampling = false;
+	private static int sQuietFrames = 0;
+	private static long sLastFrame = 0;
+	private static long sInterval = 16666667L;
+	private static volatile long sBusyUntil = 0;
+	
+	private final static Choreographer.FrameCallback sCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long aFrameTimeNanos) {
+			synchronized (sLock) {
+				if (sUsers == 0) {
+					sLastFrame = 0;
+					sSampling = false;
+					
+					return;
+				}
+				
+				if (sLastFrame > 0) {
+					long lDelta = aFrameTimeNanos - sLastFrame;
+					
+					if (lDelta >= MIN_INTERVAL && lDelta < sInterval) {
+						sInterval = lDelta;
+					}
+					
+					if (lDelta > sInterval + (sInterval / 2)) {
+						sBusyUntil = SystemClock.uptimeMillis() + QUIET_PERIOD;
+						sQuietFrames = 0;
+						
+					} else if (++sQuietFrames >= QUIET_FRAMES) {
+						sLastFrame = 0;
+						sSampling = false;
+						
+						return;
+					}
+				}
+				
+				sLastFrame = aFrameTimeNanos;
+			}
+			
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+	};
+	
+	private final static Runnable sStart = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (sLock) {
+				if (sUsers == 0) {
+					sSampling = false;
+					
+					return;
+					
+				} else if (sLastFrame != 0) {
+					return;
+				}
+				
+				sLastFrame = -1;
+				sQuietFrames = 0;
+			}
+			
+			Choreographer.getInstance().postFrameCallback(sCallback);
+		}
+	};
+	
+	private FrameMonitor() {}
+	
+	static void acquire() {
+		synchronized (sLock) {
+			sUsers++;
+		}
+		
+		sample();
+	}
+	
+	static void release() {
+		synchronized (sLock) {
+			if (sUsers > 0) {
+				sUsers--;
+			}
+		}
+	}
+	
+	static boolean isBusy() {
+		if (!sSampling) {
+			sample();
+		}
+		
+		return sBusyUntil > SystemClock.uptimeMillis();
+	}
+	
+	private static void sample() {
+		synchronized (sLock) {
+			if (sUsers == 0 || sSampling) {
+				return;
+			}
+			
+			sSampling = true;
+		}
+		
+		Utils.getHandler().post(sStart);
+	}
+	
+	/*
+	 * Milliseconds until the UI is considered quiet again, or 0 if it already is
+	 */
+	static long getBusyRemaining() {
+		return Math.max(0, sBusyUntil - SystemClock.uptimeMillis());
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class Governor {
+	/*
+	 * App-wide limit on the number of Tasks and Daemons running at the same time.
+	 * Each manager only knows about its own work, so the limits are kept here where 
+	 * all of them can see it. Work that does not fit is queued and started in order 
+	 * once a running Task finishes or a Daemon stops.
+	 */
+	
+	public final static String TAG = "Governor";
+	
+	private final static Object sLock = new Object();
+	
+	private static Integer sLimit = 0;
+	private final static Map<String, Integer> sQuotas = new HashMap<String, Integer>();
+	
+	private final static ArrayList<Entry> sRunning = new ArrayList<Entry>();
+	private final static ArrayList<Entry> sQueue = new ArrayList<Entry>();
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	private Governor() {}
+	
+	public static void setLimit(Integer aLimit) {
+		synchronized (sLock) {
+			sLimit = aLimit;
+		}
+		
+		drain();
+	}
+	
+	public static void setQuota(String aPrefix, Integer aLimit) {
+		synchronized (sLock) {
+			if (aLimit == null || (int) aLimit <= 0) {
+				sQuotas.remove(aPrefix);
+				
+			} else {
+				sQuotas.put(aPrefix, aLimit);
+			}
+		}
+		
+		drain();
+	}
+	
+	public static Integer getRunningCount() {
+		synchronized (sLock) {
+			return sRunning.size();
+		}
+	}
+	
+	public static Integer getQueuedCount() {
+		synchronized (sLock) {
+			return sQueue.size();
+		}
+	}
+	
+	static void submit(String aTag, Runnable aStart) {
+		Entry lEntry = new Entry(aTag, aStart);
+		
+		synchronized (sLock) {
+			if (!admit(lEntry)) {
+				log("submit", "[" + aTag + "] Concurrency limit reached, queuing behind " + sQueue.size() + " others");
+				
+				sQueue.add(lEntry);
+				
+				return;
+			}
+		}
+		
+		aStart.run();
+	}
+	
+	static void release(Runnable aStart) {
+		Boolean lReleased = false;
+		
+		synchronized (sLock) {
+			for (int i=0; i < sRunning.size(); i++) {
+				if (sRunning.get(i).mStart == aStart) {
+					sRunning.remove(i);
+					lReleased = true;
+					
+					break;
+				}
+			}
+		}
+		
+		if (lReleased) {
+			drain();
+		}
+	}
+	
+	static Boolean remove(Runnable aStart) {
+		synchronized (sLock) {
+			for (int i=0; i < sQueue.size(); i++) {
+				if (sQueue.get(i).mStart == aStart) {
+					sQueue.remove(i);
+					
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	private static void drain() {
+		synchronized (sLock) {
+			for (int i=0; i < sQueue.size(); ) {
+				if (admit(sQueue.get(i))) {
+					log("drain", "[" + sQueue.get(i).mTag + "] Releasing queued work");
+					
+					Utils.getHandler().post(sQueue.remove(i).mStart);
+					
+				} else {
+					i++;
+				}
+			}
+		}
+	}
+	
+	private static Boolean admit(Entry aEntry) {
+		if ((int) sLimit > 0 && sRunning.size() >= sLimit) {
+			return false;
+		}
+		
+		for (String lPrefix : sQuotas.keySet()) {
+			if (aEntry.mTag.startsWith(lPrefix)) {
+				Integer lCount = 0;
+				
+				for (int i=0; i < sRunning.size(); i++) {
+					if (sRunning.get(i).mTag.startsWith(lPrefix)) {
+						lCount += 1;
+					}
+				}
+				
+				if (lCount >= sQuotas.get(lPrefix)) {
+					return false;
+				}
+			}
+		}
+		
+		sRunning.add(aEntry);
+		
+		return true;
+	}
+	
+	private final static class Entry {
+		private final String mTag;
+		private final Runnable mStart;
+		
+		public Entry(String aTag, Runnable aStart) {
+			mTag = aTag;
+			mStart = aStart;
+		}
+	}
+}
@@ -22,4 +22,6 @@ package com.spazedog.lib.taskmanager;
 public interface IDaemon {
 	public void onPause();
 	public void onResume(IManager manager);
+	public void onTrimMemory(Integer aLevel);
+	public void onDestroy();
 }
@@ -31,4 +31,9 @@ public interface IManager {
 	public IDaemon getDaemon(String aTag);
 	
 	public Boolean isUIAttached();
+	
+	public TaskQueue getTaskQueue();
+	public PendingBudget getPendingBudget();
+	
+	public void trimMemory(Integer aLevel);
 }
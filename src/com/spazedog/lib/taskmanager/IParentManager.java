@@ -19,12 +19,7 @@
 
 package com.spazedog.lib.taskmanager;
 
-import java.util.Map;
-
 public interface IParentManager {
-	public void addChildTasks(String aClass, Map<String, ITask> aTasks);
-	public Map<String, ITask> getChildTasks(String aClass);
-	
-	public void addChildDaemons(String aClass, Map<String, IDaemon> aDaemons);
-	public Map<String, IDaemon> getChildDaemons(String aClass);
+	public void addChildScope(String aId, ChildScope aScope);
+	public ChildScope getChildScope(String aId);
 }
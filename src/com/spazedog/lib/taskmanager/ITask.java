@@ -22,4 +22,6 @@ package com.spazedog.lib.taskmanager;
 public interface ITask {
 	public void onAttachUI(IManager manager);
 	public void onDetachUI();
+	public void onTrimMemory(Integer aLevel);
+	public void onDestroy();
 }
@@ -0,0 +1,101 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.app.Application;
+import android.os.Build;
+import android.os.Bundle;
+
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+public final class ManagerInstaller implements Application.ActivityLifecycleCallbacks {
+	/*
+	 * Utils.getManager() only adds the manager fragment the first time a Task or Daemon asks for it, 
+	 * and that transaction is not applied until later. When installed, the manager is instead added and 
+	 * applied while the Activity is being created, so it follows the Activity through the whole lifecycle.
+	 */
+	
+	private static ManagerInstaller sInstance;
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log("Installer", aMethod, aMessage);
+	}
+	
+	public static void install(Application aApplication) {
+		synchronized (ManagerInstaller.class) {
+			if (sInstance == null) {
+				log("install", "Installing managers on all new activities");
+				
+				sInstance = new ManagerInstaller();
+				aApplication.registerActivityLifecycleCallbacks(sInstance);
+			}
+		}
+	}
+	
+	public static void uninstall(Application aApplication) {
+		synchronized (ManagerInstaller.class) {
+			if (sInstance != null) {
+				aApplication.unregisterActivityLifecycleCallbacks(sInstance);
+				sInstance = null;
+			}
+		}
+	}
+	
+	private ManagerInstaller() {}
+	
+	@Override
+	public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+		if (activity instanceof android.support.v4.app.FragmentActivity) {
+			/*
+			 * FragmentActivity restores its fragments after this callback, 
+			 * so a recreated Activity will get its retained manager back on its own
+			 */
+			if (savedInstanceState == null) {
+				Utils.getManager((android.support.v4.app.FragmentActivity) activity);
+				
+				((android.support.v4.app.FragmentActivity) activity).getSupportFragmentManager().executePendingTransactions();
+			}
+			
+		} else {
+			Utils.getManager(activity);
+			
+			activity.getFragmentManager().executePendingTransactions();
+		}
+	}
+	
+	@Override
+	public void onActivityStarted(Activity activity) {}
+	
+	@Override
+	public void onActivityResumed(Activity activity) {}
+	
+	@Override
+	public void onActivityPaused(Activity activity) {}
+	
+	@Override
+	public void onActivityStopped(Activity activity) {}
+	
+	@Override
+	public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+	
+	@Override
+	public void onActivityDestroyed(Activity activity) {}
+}
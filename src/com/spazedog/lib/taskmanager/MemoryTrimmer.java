@@ -0,0 +1,180 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+public final class MemoryTrimmer {
+	/*
+	 * Forwards memory pressure from the system to every live manager. 
+	 * The system callbacks are received by a nested class that is only loaded from API 14, 
+	 * so the support managers can use this class on any version.
+	 * 
+	 * From TRIM_MEMORY_RUNNING_LOW and while in the background, pending progress updates are dropped, 
+	 * Daemon backlogs are trimmed to the latest result and sticky observer values are released. 
+	 * At TRIM_MEMORY_RUNNING_CRITICAL and from TRIM_MEMORY_BACKGROUND, Tasks and Daemons with a priority below 0 are stopped as well.
+	 */
+	
+	public final static String TAG = "MemoryTrimmer";
+	
+	private final static Object sLock = new Object();
+	
+	private final static ArrayList<WeakReference<IManager>> sManagers = new ArrayList<WeakReference<IManager>>();
+	
+	private static Callbacks sCallbacks;
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	private MemoryTrimmer() {}
+	
+	/*
+	 * Managers register themselves, so this only needs to be called directly to start listening 
+	 * before the first manager has been created
+	 */
+	public static void install(Context aContext) {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH || aContext == null) {
+			return;
+		}
+		
+		synchronized (sLock) {
+			if (sCallbacks == null) {
+				log("install", "Listening for memory pressure");
+				
+				sCallbacks = new Callbacks();
+				sCallbacks.register(aContext.getApplicationContext());
+			}
+		}
+	}
+	
+	static void register(IManager aManager, Context aContext) {
+		install(aContext);
+		
+		synchronized (sLock) {
+			for (int i=sManagers.size()-1; i >= 0; i--) {
+				IManager lManager = sManagers.get(i).get();
+				
+				if (lManager == null) {
+					sManagers.remove(i);
+					
+				} else if (lManager == aManager) {
+					return;
+				}
+			}
+			
+			sManagers.add(new WeakReference<IManager>(aManager));
+		}
+	}
+	
+	/*
+	 * The levels are compile time constants, so using them does not load ComponentCallbacks2
+	 */
+	static Boolean isLow(Integer aLevel) {
+		return aLevel >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW && aLevel != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+	}
+	
+	static Boolean isCritical(Integer aLevel) {
+		return aLevel == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL || aLevel >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+	}
+	
+	/*
+	 * Used by the managers for their own Tasks and Daemons. The maps are copied while holding aLock, 
+	 * as Tasks and Daemons may remove themselves while being trimmed.
+	 */
+	static void trim(Object aLock, Map<String, ITask> aTasks, Map<String, IDaemon> aDaemons, Integer aLevel) {
+		ArrayList<ITask> lTasks;
+		ArrayList<IDaemon> lDaemons;
+		
+		synchronized (aLock) {
+			log("trim", "Trimming " + aTasks.size() + " tasks and " + aDaemons.size() + " daemons at level " + aLevel);
+			
+			lTasks = new ArrayList<ITask>(aTasks.values());
+			lDaemons = new ArrayList<IDaemon>(aDaemons.values());
+		}
+		
+		for (ITask lTask : lTasks) {
+			lTask.onTrimMemory(aLevel);
+		}
+		
+		for (IDaemon lDaemon : lDaemons) {
+			lDaemon.onTrimMemory(aLevel);
+		}
+	}
+	
+	public static void trimMemory(Integer aLevel) {
+		ArrayList<IManager> lManagers = new ArrayList<IManager>();
+		
+		synchronized (sLock) {
+			for (int i=sManagers.size()-1; i >= 0; i--) {
+				IManager lManager = sManagers.get(i).get();
+				
+				if (lManager == null) {
+					sManagers.remove(i);
+					
+				} else {
+					lManagers.add(lManager);
+				}
+			}
+		}
+		
+		log("trimMemory", "Trimming " + lManagers.size() + " managers at level " + aLevel);
+		
+		TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "trimMemory", TAG);
+		
+		if (isLow(aLevel)) {
+			ObserverRegistry.trimMemory();
+		}
+		
+		for (IManager lManager : lManagers) {
+			lManager.trimMemory(aLevel);
+		}
+		
+		TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "trimMemory", TAG);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	private final static class Callbacks implements ComponentCallbacks2 {
+		public void register(Context aContext) {
+			aContext.registerComponentCallbacks(this);
+		}
+		
+		@Override
+		public void onTrimMemory(int level) {
+			trimMemory(level);
+		}
+		
+		@Override
+		public void onLowMemory() {
+			trimMemory(TRIM_MEMORY_COMPLETE);
+		}
+		
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {}
+	}
+}
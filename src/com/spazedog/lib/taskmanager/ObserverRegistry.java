@@ -0,0 +1,443 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+public final class ObserverRegistry {
+	/*
+	 * Lets any number of UI components follow a Task by its tag. The latest progress and result of each tag 
+	 * are kept, so that late observers are brought up to date as soon as they subscribe. Channels belong to the 
+	 * manager owning the Task, so two screens using the same tag do not see each other's values. Observers are removed 
+	 * once their manager detaches from the UI, so onResume() is the place to subscribe.
+	 */
+	
+	public final static String TAG = "ObserverRegistry";
+	
+	private final static Object sLock = new Object();
+	
+	private final static Map<IManager, Map<String, Channel>> sChannels = new WeakHashMap<IManager, Map<String, Channel>>();
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	private ObserverRegistry() {}
+	
+	public static void observe(IManager aOwner, String aTag, IObserver<?, ?> aObserver) {
+		if (aOwner == null) {
+			log("observe", "[" + aTag + "] There is no manager to observe through, ignoring the observer");
+			
+			return;
+		}
+		
+		final Subscription lSubscription = new Subscription(aOwner, aTag, aObserver);
+		
+		synchronized (sLock) {
+			log("observe", "[" + aTag + "] Adding observer");
+			
+			channel(aOwner, aTag).mObservers.add(lSubscription);
+		}
+		
+		/*
+		 * The manager may not have attached yet if this is called from the host's onResume(), 
+		 * in which case attach() replays the values instead
+		 */
+		Utils.runOnUiThread(new Runnable() {
+			public void run() {
+				replay(lSubscription);
+			}
+		});
+	}
+	
+	public static void removeObserver(String aTag, IObserver<?, ?> aObserver) {
+		synchronized (sLock) {
+			for (Map<String, Channel> lChannels : sChannels.values()) {
+				Channel lChannel = lChannels.get(aTag);
+				
+				if (lChannel != null) {
+					for (int i=lChannel.mObservers.size()-1; i >= 0; i--) {
+						if (lChannel.mObservers.get(i).mObserver == aObserver) {
+							lChannel.mObservers.remove(i);
+						}
+					}
+					
+					if (lChannel.mObservers.size() == 0) {
+						lChannels.remove(aTag);
+					}
+				}
+			}
+		}
+	}
+	
+	public static void clear(String aTag) {
+		synchronized (sLock) {
+			for (Map<String, Channel> lChannels : sChannels.values()) {
+				Channel lChannel = lChannels.get(aTag);
+				
+				if (lChannel != null) {
+					lChannel.reset();
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Brings the observers that subscribed before aOwner was attached up to date
+	 */
+	static void attach(IManager aOwner) {
+		ArrayList<Subscription> lPending = new ArrayList<Subscription>();
+		
+		synchronized (sLock) {
+			Map<String, Channel> lChannels = sChannels.get(aOwner);
+			
+			if (lChannels != null) {
+				for (Channel lChannel : lChannels.values()) {
+					for (Subscription lSubscription : lChannel.mObservers) {
+						if (!lSubscription.mReplayed) {
+							lPending.add(lSubscription);
+						}
+					}
+				}
+			}
+		}
+		
+		for (Subscription lSubscription : lPending) {
+			replay(lSubscription);
+		}
+	}
+	
+	/*
+	 * Removes the observers of aOwner, along with the channels left without any
+	 */
+	static void detach(IManager aOwner) {
+		synchronized (sLock) {
+			for (Map<String, Channel> lChannels : sChannels.values()) {
+				Iterator<Channel> lIterator = lChannels.values().iterator();
+				
+				while (lIterator.hasNext()) {
+					Channel lChannel = lIterator.next();
+					Boolean lRemoved = false;
+					
+					for (int i=lChannel.mObservers.size()-1; i >= 0; i--) {
+						IManager lOwner = lChannel.mObservers.get(i).mOwner.get();
+						
+						if (lOwner == null || lOwner == aOwner) {
+							lChannel.mObservers.remove(i);
+							lRemoved = true;
+						}
+					}
+					
+					if (lRemoved && lChannel.mObservers.size() == 0) {
+						lIterator.remove();
+					}
+				}
+			}
+			
+			Map<String, Channel> lChannels = sChannels.get(aOwner);
+			
+			if (lChannels != null && lChannels.size() == 0) {
+				sChannels.remove(aOwner);
+			}
+		}
+	}
+	
+	/*
+	 * Releases sticky values, and channels that no longer have observers
+	 */
+	static void trimMemory() {
+		synchronized (sLock) {
+			for (Map<String, Channel> lChannels : sChannels.values()) {
+				Iterator<Channel> lIterator = lChannels.values().iterator();
+				
+				while (lIterator.hasNext()) {
+					Channel lChannel = lIterator.next();
+					
+					lChannel.reset();
+					
+					if (lChannel.mObservers.size() == 0) {
+						lIterator.remove();
+					}
+				}
+			}
+		}
+	}
+	
+	static void resetProgress(IManager aOwner, String aTag) {
+		synchronized (sLock) {
+			Map<String, Channel> lChannels = aOwner != null ? sChannels.get(aOwner) : null;
+			Channel lChannel = lChannels != null ? lChannels.get(aTag) : null;
+			
+			if (lChannel != null) {
+				lChannel.mProgress = null;
+				lChannel.mIntProgress = null;
+				lChannel.mLongProgress = null;
+			}
+		}
+	}
+	
+	static void publishProgress(IManager aOwner, String aTag, Object[] aValues) {
+		ArrayList<Subscription> lObservers;
+		
+		synchronized (sLock) {
+			if (aOwner == null) {
+				return;
+			}
+			
+			Channel lChannel = channel(aOwner, aTag);
+			
+			lChannel.mProgress = aValues;
+			
+			lObservers = lChannel.getReplayed();
+		}
+		
+		for (Subscription lSubscription : lObservers) {
+			if (lSubscription.isAttached()) {
+				progress(aTag, lSubscription.mObserver, aValues);
+			}
+		}
+	}
+	
+	static void publishIntProgress(IManager aOwner, String aTag, int aValue) {
+		ArrayList<Subscription> lObservers;
+		
+		synchronized (sLock) {
+			if (aOwner == null) {
+				return;
+			}
+			
+			Channel lChannel = channel(aOwner, aTag);
+			
+			lChannel.mIntProgress = aValue;
+			
+			lObservers = lChannel.getReplayed();
+		}
+		
+		for (Subscription lSubscription : lObservers) {
+			if (lSubscription.isAttached()) {
+				progress(aTag, lSubscription.mObserver, aValue);
+			}
+		}
+	}
+	
+	static void publishLongProgress(IManager aOwner, String aTag, long aValue, long aTotal) {
+		ArrayList<Subscription> lObservers;
+		
+		synchronized (sLock) {
+			if (aOwner == null) {
+				return;
+			}
+			
+			Channel lChannel = channel(aOwner, aTag);
+			
+			lChannel.mLongProgress = new long[] {aValue, aTotal};
+			
+			lObservers = lChannel.getReplayed();
+		}
+		
+		for (Subscription lSubscription : lObservers) {
+			if (lSubscription.isAttached()) {
+				progress(aTag, lSubscription.mObserver, aValue, aTotal);
+			}
+		}
+	}
+	
+	static void publishResult(IManager aOwner, String aTag, Object aResult) {
+		ArrayList<Subscription> lObservers;
+		
+		synchronized (sLock) {
+			if (aOwner == null) {
+				return;
+			}
+			
+			Channel lChannel = channel(aOwner, aTag);
+			
+			lChannel.mResult = aResult;
+			lChannel.mHasResult = true;
+			
+			lObservers = lChannel.getReplayed();
+		}
+		
+		for (Subscription lSubscription : lObservers) {
+			if (lSubscription.isAttached()) {
+				result(aTag, lSubscription.mObserver, aResult);
+			}
+		}
+	}
+	
+	/*
+	 * Hands the sticky values to a new observer, once its manager is attached. 
+	 * Until then, publishing skips the observer so that it does not receive values out of order.
+	 */
+	private static void replay(Subscription aSubscription) {
+		Object[] lProgress;
+		Integer lIntProgress;
+		long[] lLongProgress;
+		Object lResult;
+		Boolean lHasResult;
+		
+		synchronized (sLock) {
+			if (aSubscription.mReplayed || !aSubscription.isAttached()) {
+				return;
+			}
+			
+			aSubscription.mReplayed = true;
+			
+			Map<String, Channel> lChannels = sChannels.get(aSubscription.mOwner.get());
+			Channel lChannel = lChannels != null ? lChannels.get(aSubscription.mTag) : null;
+			
+			if (lChannel == null) {
+				return;
+			}
+			
+			lProgress = lChannel.mProgress;
+			lIntProgress = lChannel.mIntProgress;
+			lLongProgress = lChannel.mLongProgress;
+			lResult = lChannel.mResult;
+			lHasResult = lChannel.mHasResult;
+		}
+		
+		String lTag = aSubscription.mTag;
+		IObserver<?, ?> lObserver = aSubscription.mObserver;
+		
+		if (lProgress != null) {
+			progress(lTag, lObserver, lProgress);
+		}
+		
+		if (lIntProgress != null) {
+			progress(lTag, lObserver, (int) lIntProgress);
+		}
+		
+		if (lLongProgress != null) {
+			progress(lTag, lObserver, lLongProgress[0], lLongProgress[1]);
+		}
+		
+		if (lHasResult) {
+			result(lTag, lObserver, lResult);
+		}
+	}
+	
+	private static Channel channel(IManager aOwner, String aTag) {
+		Map<String, Channel> lChannels = sChannels.get(aOwner);
+		
+		if (lChannels == null) {
+			sChannels.put(aOwner, (lChannels = new HashMap<String, Channel>()));
+		}
+		
+		Channel lChannel = lChannels.get(aTag);
+		
+		if (lChannel == null) {
+			lChannels.put(aTag, (lChannel = new Channel()));
+		}
+		
+		return lChannel;
+	}
+	
+	/*
+	 * Observer callbacks are user code on the main thread, so they are traced and measured like those of a Task
+	 */
+	private static void progress(String aTag, final IObserver<?, ?> aObserver, final Object[] aValues) {
+		CallbackMonitor.invoke(TraceRecorder.CATEGORY_OBSERVER, "onProgressUpdate", aTag, new Runnable() {
+			@SuppressWarnings("unchecked")
+			public void run() {
+				((IObserver<Object, Object>) aObserver).onProgressUpdate(aValues);
+			}
+		});
+	}
+	
+	private static void progress(String aTag, final IObserver<?, ?> aObserver, final int aValue) {
+		CallbackMonitor.invoke(TraceRecorder.CATEGORY_OBSERVER, "onProgressUpdate", aTag, new Runnable() {
+			public void run() {
+				aObserver.onProgressUpdate(aValue);
+			}
+		});
+	}
+	
+	private static void progress(String aTag, final IObserver<?, ?> aObserver, final long aValue, final long aTotal) {
+		CallbackMonitor.invoke(TraceRecorder.CATEGORY_OBSERVER, "onProgressUpdate", aTag, new Runnable() {
+			public void run() {
+				aObserver.onProgressUpdate(aValue, aTotal);
+			}
+		});
+	}
+	
+	private static void result(String aTag, final IObserver<?, ?> aObserver, final Object aResult) {
+		CallbackMonitor.invoke(TraceRecorder.CATEGORY_OBSERVER, "onResult", aTag, new Runnable() {
+			@SuppressWarnings("unchecked")
+			public void run() {
+				((IObserver<Object, Object>) aObserver).onResult(aResult);
+			}
+		});
+	}
+	
+	private final static class Channel {
+		private final ArrayList<Subscription> mObservers = new ArrayList<Subscription>();
+		
+		private Object[] mProgress;
+		private Integer mIntProgress;
+		private long[] mLongProgress;
+		private Object mResult;
+		private Boolean mHasResult = false;
+		
+		public void reset() {
+			mProgress = null;
+			mIntProgress = null;
+			mLongProgress = null;
+			mResult = null;
+			mHasResult = false;
+		}
+		
+		public ArrayList<Subscription> getReplayed() {
+			ArrayList<Subscription> lObservers = new ArrayList<Subscription>();
+			
+			for (Subscription lSubscription : mObservers) {
+				if (lSubscription.mReplayed) {
+					lObservers.add(lSubscription);
+				}
+			}
+			
+			return lObservers;
+		}
+	}
+	
+	private final static class Subscription {
+		private final WeakReference<IManager> mOwner;
+		private final String mTag;
+		private final IObserver<?, ?> mObserver;
+		private Boolean mReplayed = false;
+		
+		public Subscription(IManager aOwner, String aTag, IObserver<?, ?> aObserver) {
+			mOwner = new WeakReference<IManager>(aOwner);
+			mTag = aTag;
+			mObserver = aObserver;
+		}
+		
+		public Boolean isAttached() {
+			IManager lOwner = mOwner.get();
+			
+			return lOwner != null && lOwner.isUIAttached();
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+public class PendingBudget {
+	/*
+	 * Accounts for the results that Tasks and Daemons hold on to while the UI is detached. 
+	 * Only results from Tasks and Daemons that have a size estimator are counted. 
+	 * When a limit is set, the policy decides what happens to results that would exceed it. 
+	 * A single result is always accepted when nothing else is being held.
+	 */
+	
+	public final static String TAG = "PendingBudget";
+	
+	/*
+	 * Hold the result through a SoftReference, so that the garbage collector can reclaim it
+	 */
+	public final static Integer POLICY_SPILL = 0;
+	
+	/*
+	 * Drop the result. A Task is then delivered onCancelled(), and a Daemon drops its oldest undelivered results first
+	 */
+	public final static Integer POLICY_DROP = 1;
+	
+	/*
+	 * Hold back the Daemon thread producing the result until it fits or the UI is attached. 
+	 * A Task has finished producing by the time its result is counted, so it is accepted as with no limit.
+	 */
+	public final static Integer POLICY_BLOCK = 2;
+	
+	final static Integer ACCEPTED = 0;
+	final static Integer SPILLED = 1;
+	final static Integer DROPPED = 2;
+	
+	private final Object mLock = new Object();
+	
+	private long mLimit = 0;
+	private Integer mPolicy = POLICY_SPILL;
+	
+	private long mUsage = 0;
+	private long mPeak = 0;
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	public void setLimit(long aBytes, Integer aPolicy) {
+		synchronized (mLock) {
+			mLimit = aBytes;
+			mPolicy = aPolicy;
+			mLock.notifyAll();
+		}
+	}
+	
+	public long getLimit() {
+		return mLimit;
+	}
+	
+	public Integer getPolicy() {
+		return mPolicy;
+	}
+	
+	public long getUsage() {
+		synchronized (mLock) {
+			return mUsage;
+		}
+	}
+	
+	public long getPeak() {
+		synchronized (mLock) {
+			return mPeak;
+		}
+	}
+	
+	private Boolean fits(long aBytes) {
+		return mLimit <= 0 || mUsage == 0 || mUsage + aBytes <= mLimit;
+	}
+	
+	Integer reserve(long aBytes, String aTag) {
+		synchronized (mLock) {
+			if (!fits(aBytes) && mPolicy != POLICY_BLOCK) {
+				log("reserve", "[" + aTag + "] " + aBytes + " bytes exceeds the budget (" + mUsage + "/" + mLimit + ")");
+				
+				return mPolicy == POLICY_DROP ? DROPPED : SPILLED;
+			}
+			
+			mUsage += aBytes;
+			
+			if (mUsage > mPeak) {
+				mPeak = mUsage;
+			}
+			
+			return ACCEPTED;
+		}
+	}
+	
+	void release(long aBytes) {
+		synchronized (mLock) {
+			mUsage = Math.max(0, mUsage - aBytes);
+			mLock.notifyAll();
+		}
+	}
+	
+	/*
+	 * Used with POLICY_BLOCK from Daemon threads before a result is handed over
+	 */
+	void await(long aBytes, IManager aManager, String aTag) throws InterruptedException {
+		synchronized (mLock) {
+			if (mPolicy == POLICY_BLOCK && !fits(aBytes) && !aManager.isUIAttached()) {
+				log("await", "[" + aTag + "] The budget is exhausted (" + mUsage + "/" + mLimit + "), holding back the producer");
+				
+				while (mPolicy == POLICY_BLOCK && !fits(aBytes) && !aManager.isUIAttached()) {
+					mLock.wait();
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Wakes producers held back by await() so that they can check the UI state again
+	 */
+	void wake() {
+		synchronized (mLock) {
+			mLock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+
+public class ResultCache {
+	/*
+	 * A size bound LRU cache of Task results on disk. Each entry is a single file containing 
+	 * a small header with the full key, followed by the serialized result. Files are read 
+	 * through a memory mapped channel and handed to the serializer without copying.
+	 */
+	
+	public final static String TAG = "ResultCache";
+	
+	private final static int MAGIC = 0x544d5243;
+	private final static int VERSION = 2;
+	
+	private final static String SUFFIX = ".rc";
+	
+	private final static String JOURNAL = "taskmanager-journal";
+	
+	private final static long JOURNAL_MAX_SIZE = 16 * 1024 * 1024;
+	private final static long JOURNAL_MAX_AGE = 24 * 60 * 60 * 1000;
+	
+	private static ResultCache sJournal;
+	private static ExecutorService sWriter;
+	
+	private final Object mLock = new Object();
+	
+	private final File mDirectory;
+	private final long mMaxSize;
+	private final long mMaxAge;
+	
+	private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mSize = 0;
+	private Boolean mLoaded = false;
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	public static String key(String aTag, Object[] aParams) {
+		return aTag + ":" + (aParams != null ? Arrays.deepHashCode(aParams) : 0);
+	}
+	
+	/*
+	 * Store in the app's files dir, used for the results of durable Tasks while their delivery 
+	 * to the UI is deferred. Entries expire after a day, so a stale result is not restored forever.
+	 */
+	public static ResultCache getJournal(Context aContext) {
+		synchronized (ResultCache.class) {
+			if (sJournal == null) {
+				sJournal = new ResultCache(new File(aContext.getApplicationContext().getFilesDir(), JOURNAL), JOURNAL_MAX_SIZE, JOURNAL_MAX_AGE);
+			}
+			
+			return sJournal;
+		}
+	}
+	
+	public ResultCache(Context aContext, String aName, long aMaxSize) {
+		this(new File(aContext.getCacheDir(), aName), aMaxSize);
+	}
+	
+	public ResultCache(File aDirectory, long aMaxSize) {
+		this(aDirectory, aMaxSize, 0);
+	}
+	
+	/*
+	 * Entries older than aMaxAge milliseconds are treated as missing. Use 0 to keep them until they are evicted.
+	 */
+	public ResultCache(File aDirectory, long aMaxSize, long aMaxAge) {
+		mDirectory = aDirectory;
+		mMaxSize = aMaxSize;
+		mMaxAge = aMaxAge;
+	}
+	
+	public <T> T get(String aKey, ISerializer<T> aSerializer) {
+		synchronized (mLock) {
+			load();
+			
+			String lName = fileName(aKey);
+			
+			if (mIndex.get(lName) == null) {
+				return null;
+			}
+			
+			File lFile = new File(mDirectory, lName);
+			FileInputStream lStream = null;
+			
+			try {
+				lStream = new FileInputStream(lFile);
+				
+				FileChannel lChannel = lStream.getChannel();
+				ByteBuffer lBuffer = lChannel.map(FileChannel.MapMode.READ_ONLY, 0, lChannel.size());
+				
+				if (lBuffer.getInt() != MAGIC || lBuffer.getInt() != VERSION) {
+					throw new IOException("Unknown file format");
+				}
+				
+				long lCreated = lBuffer.getLong();
+				
+				if (mMaxAge > 0 && System.currentTimeMillis() - lCreated > mMaxAge) {
+					throw new IOException("The entry has expired");
+				}
+				
+				byte[] lKey = new byte[lBuffer.getInt()];
+				lBuffer.get(lKey);
+				
+				if (!aKey.equals(new String(lKey, "UTF-8"))) {
+					return null;
+				}
+				
+				int lLength = lBuffer.getInt();
+				
+				ByteBuffer lPayload = lBuffer.slice();
+				lPayload.limit(lLength);
+				
+				lFile.setLastModified(System.currentTimeMillis());
+				
+				return aSerializer.deserialize(lPayload);
+				
+			} catch (Throwable e) {
+				log("get", "Could not read the cache entry " + aKey + ", removing it: " + e.getMessage());
+				
+				delete(lName);
+				
+			} finally {
+				close(lStream);
+			}
+			
+			return null;
+		}
+	}
+	
+	public <T> Boolean put(String aKey, T aValue, ISerializer<T> aSerializer) {
+		synchronized (mLock) {
+			load();
+			
+			String lName = fileName(aKey);
+			File lFile = new File(mDirectory, lName);
+			File lTemp = new File(mDirectory, lName + ".tmp");
+			FileOutputStream lStream = null;
+			
+			try {
+				byte[] lKey = aKey.getBytes("UTF-8");
+				byte[] lPayload = aSerializer.serialize(aValue);
+				
+				ByteBuffer lBuffer = ByteBuffer.allocate(24 + lKey.length + lPayload.length);
+				lBuffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(lKey.length).put(lKey).putInt(lPayload.length).put(lPayload);
+				lBuffer.flip();
+				
+				lStream = new FileOutputStream(lTemp);
+				FileChannel lChannel = lStream.getChannel();
+				
+				while (lBuffer.hasRemaining()) {
+					lChannel.write(lBuffer);
+				}
+				
+				close(lStream);
+				lStream = null;
+				
+				delete(lName);
+				
+				if (!lTemp.renameTo(lFile)) {
+					throw new IOException("Could not move the new entry into place");
+				}
+				
+				mIndex.put(lName, lFile.length());
+				mSize += lFile.length();
+				
+				trim(mMaxSize);
+				
+				return true;
+				
+			} catch (Throwable e) {
+				log("put", "Could not write the cache entry " + aKey + ": " + e.getMessage());
+				
+				lTemp.delete();
+				
+			} finally {
+				close(lStream);
+			}
+			
+			return false;
+		}
+	}
+	
+	/*
+	 * Writes on a shared background thread, for callers on the main thread
+	 */
+	<T> void putAsync(final String aKey, final T aValue, final ISerializer<T> aSerializer) {
+		writer().execute(new Runnable() {
+			public void run() {
+				put(aKey, aValue, aSerializer);
+			}
+		});
+	}
+	
+	void removeAsync(final String aKey) {
+		writer().execute(new Runnable() {
+			public void run() {
+				remove(aKey);
+			}
+		});
+	}
+	
+	private static ExecutorService writer() {
+		synchronized (ResultCache.class) {
+			if (sWriter == null) {
+				sWriter = Executors.newSingleThreadExecutor();
+			}
+			
+			return sWriter;
+		}
+	}
+	
+	public void remove(String aKey) {
+		synchronized (mLock) {
+			load();
+			delete(fileName(aKey));
+		}
+	}
+	
+	public void clear() {
+		synchronized (mLock) {
+			load();
+			trim(0);
+		}
+	}
+	
+	public long size() {
+		synchronized (mLock) {
+			load();
+			
+			return mSize;
+		}
+	}
+	
+	private void trim(long aMaxSize) {
+		Iterator<String> lIterator = mIndex.keySet().iterator();
+		
+		while (mSize > aMaxSize && lIterator.hasNext()) {
+			String lName = lIterator.next();
+			
+			mSize -= mIndex.get(lName);
+			new File(mDirectory, lName).delete();
+			
+			lIterator.remove();
+		}
+	}
+	
+	private void delete(String aName) {
+		Long lSize = mIndex.remove(aName);
+		
+		if (lSize != null) {
+			mSize -= lSize;
+		}
+		
+		new File(mDirectory, aName).delete();
+	}
+	
+	private void load() {
+		if (!mLoaded) {
+			mLoaded = true;
+			
+			if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+				log("load", "Could not create the cache directory " + mDirectory.getPath());
+				
+				return;
+			}
+			
+			File[] lFiles = mDirectory.listFiles();
+			
+			if (lFiles != null) {
+				Arrays.sort(lFiles, new Comparator<File>() {
+					public int compare(File aLeft, File aRight) {
+						long lLeft = aLeft.lastModified();
+						long lRight = aRight.lastModified();
+						
+						return lLeft < lRight ? -1 : (lLeft == lRight ? 0 : 1);
+					}
+				});
+				
+				for (File lFile : lFiles) {
+					if (lFile.getName().endsWith(SUFFIX)) {
+						mIndex.put(lFile.getName(), lFile.length());
+						mSize += lFile.length();
+						
+					} else {
+						lFile.delete();
+					}
+				}
+			}
+			
+			trim(mMaxSize);
+		}
+	}
+	
+	private static String fileName(String aKey) {
+		return Integer.toHexString(aKey.hashCode()) + "-" + Integer.toHexString(aKey.length()) + SUFFIX;
+	}
+	
+	private static void close(Closeable aStream) {
+		if (aStream != null) {
+			try {
+				aStream.close();
+				
+			} catch (IOException e) {}
+		}
+	}
+	
+	public static class JavaSerializer<T extends Serializable> implements ISerializer<T> {
+		@Override
+		public byte[] serialize(T aValue) throws IOException {
+			ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+			ObjectOutputStream lStream = new ObjectOutputStream(lBytes);
+			
+			lStream.writeObject(aValue);
+			lStream.close();
+			
+			return lBytes.toByteArray();
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		public T deserialize(ByteBuffer aBuffer) throws IOException {
+			byte[] lBytes = new byte[aBuffer.remaining()];
+			aBuffer.get(lBytes);
+			
+			ObjectInputStream lStream = new ObjectInputStream(new ByteArrayInputStream(lBytes));
+			
+			try {
+				return (T) lStream.readObject();
+				
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e.getMessage());
+				
+			} finally {
+				lStream.close();
+			}
+		}
+	}
+}
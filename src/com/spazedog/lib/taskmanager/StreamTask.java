@@ -0,0 +1,252 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+public abstract class StreamTask<Params, Item> extends Task<Params, Void, Void> {
+	/*
+	 * A Task that hands its results to the UI one item at a time while it is still producing them. 
+	 * The UI controls the pace using request(), and items wait in a bounded buffer while there is no demand 
+	 * or while the UI is detached. When the buffer is full, emit() blocks the producer until there is room again, 
+	 * which is why a StreamTask runs on the thread pool rather than the serial executor. 
+	 * Once produce() returns, onPostExecute() is held back until the buffered items have been delivered.
+	 */
+	
+	public final static String TAG = "StreamTask";
+	
+	private final Object mStreamLock = new Object();
+	
+	private final LinkedList<Item> mBuffer = new LinkedList<Item>();
+	private Integer mBufferLimit = 64;
+	
+	private long mDemand = Long.MAX_VALUE;
+	
+	private Boolean mDrainQueued = false;
+	private Boolean mFinishQueued = false;
+	
+	private final Runnable mDrain = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	public StreamTask(android.support.v4.app.Fragment aFragment, String aTag) {
+		super(aFragment, aTag);
+	}
+	
+	public StreamTask(android.support.v4.app.FragmentActivity aActivity, String aTag) {
+		super(aActivity, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public StreamTask(android.app.Fragment aFragment, String aTag) {
+		super(aFragment, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public StreamTask(android.app.Activity aActivity, String aTag) {
+		super(aActivity, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public StreamTask(android.app.Application aApplication, String aTag) {
+		super(aApplication, aTag);
+	}
+	
+	public StreamTask<Params, Item> setBufferLimit(Integer aLimit) {
+		synchronized (mStreamLock) {
+			mBufferLimit = aLimit;
+			mStreamLock.notifyAll();
+		}
+		
+		return this;
+	}
+	
+	/*
+	 * The demand is unbounded by default. Set it to a number (or 0) before executing 
+	 * to have items delivered only as they are requested.
+	 */
+	public StreamTask<Params, Item> setInitialDemand(long aDemand) {
+		synchronized (mStreamLock) {
+			mDemand = aDemand;
+		}
+		
+		return this;
+	}
+	
+	public void request(long aCount) {
+		synchronized (mStreamLock) {
+			if (mDemand != Long.MAX_VALUE) {
+				mDemand = aCount >= Long.MAX_VALUE - mDemand ? Long.MAX_VALUE : mDemand + aCount;
+			}
+		}
+		
+		scheduleDrain();
+	}
+	
+	protected abstract void produce(Params... params);
+	protected void onNext(Item item) {}
+	
+	protected final Boolean emit(Item aItem) {
+		synchronized (mStreamLock) {
+			while (mBuffer.size() >= mBufferLimit && !isCancelled()) {
+				try {
+					mStreamLock.wait();
+					
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			
+			if (isCancelled()) {
+				return false;
+			}
+			
+			mBuffer.add(aItem);
+		}
+		
+		scheduleDrain();
+		
+		return true;
+	}
+	
+	@Override
+	protected final Void doInBackground(Params... params) {
+		produce(params);
+		
+		return null;
+	}
+	
+	@Override
+	Boolean isBlocking() {
+		return true;
+	}
+	
+	/*
+	 * Keep onPostExecute() from overtaking the last items. 
+	 * Both this and drain() run on the main thread, so whichever sees the empty buffer last finishes the Task.
+	 */
+	@Override
+	void postResult(Void aResult) {
+		synchronized (mStreamLock) {
+			if (mBuffer.size() > 0) {
+				log("postResult", "Holding onPostExecute() until the remaining " + mBuffer.size() + " items have been delivered");
+				
+				mFinishQueued = true;
+				
+				return;
+			}
+		}
+		
+		super.postResult(aResult);
+	}
+	
+	@Override
+	public void onAttachUI(IManager manager) {
+		super.onAttachUI(manager);
+		
+		scheduleDrain();
+	}
+	
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean lCancelled = super.cancel(mayInterruptIfRunning);
+		
+		synchronized (mStreamLock) {
+			mBuffer.clear();
+			mStreamLock.notifyAll();
+		}
+		
+		/*
+		 * A held onPostExecute() no longer has anything to wait for
+		 */
+		scheduleDrain();
+		
+		return lCancelled;
+	}
+	
+	private void scheduleDrain() {
+		synchronized (mStreamLock) {
+			if (mDrainQueued) {
+				return;
+			}
+			
+			mDrainQueued = true;
+		}
+		
+		Utils.getHandler().post(mDrain);
+	}
+	
+	private void drain() {
+		synchronized (mStreamLock) {
+			mDrainQueued = false;
+		}
+		
+		while (true) {
+			final Item lItem;
+			
+			synchronized (mStreamLock) {
+				if (mBuffer.size() == 0 || mDemand <= 0 || !isUIAttached()) {
+					if (mBuffer.size() > 0) {
+						log("drain", "Holding " + mBuffer.size() + " items until there is demand and an attached UI");
+					}
+					
+					break;
+				}
+				
+				lItem = mBuffer.removeFirst();
+				
+				if (mDemand != Long.MAX_VALUE) {
+					mDemand -= 1;
+				}
+				
+				mStreamLock.notifyAll();
+			}
+			
+			invoke("onNext", new Runnable() {
+				public void run() {
+					onNext(lItem);
+				}
+			});
+		}
+		
+		Boolean lFinish;
+		
+		synchronized (mStreamLock) {
+			lFinish = mFinishQueued && mBuffer.size() == 0;
+			
+			if (lFinish) {
+				mFinishQueued = false;
+			}
+		}
+		
+		if (lFinish) {
+			super.postResult(null);
+		}
+	}
+}
@@ -19,6 +19,7 @@
 
 package com.spazedog.lib.taskmanager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,8 +34,10 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
     private Map<String, ITask> mTasks = new HashMap<String, ITask>();
     private Map<String, IDaemon> mDaemons = new HashMap<String, IDaemon>();
     
-    private Map<String, Map<String, ITask>> mChildTasks = new HashMap<String, Map<String, ITask>>();
-    private Map<String, Map<String, IDaemon>> mChildDaemons = new HashMap<String, Map<String, IDaemon>>();
+    private final TaskQueue mQueue = new TaskQueue();
+    private final PendingBudget mBudget = new PendingBudget();
+    
+    private Map<String, ChildScope> mChildScopes = new HashMap<String, ChildScope>();
     
     protected Boolean mUIAttached = false;
     
@@ -46,11 +49,38 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
+        
+        MemoryTrimmer.register(this, getActivity());
     }
     
+    /*
+     * The instance is retained, so this is only called when the host is finishing or the manager is removed. 
+     * Nothing can attach to these Tasks and Daemons again, so they are cancelled and stopped.
+     */
     @Override
     public void onDestroy() {
     	super.onDestroy();
+    	
+    	ArrayList<ChildScope> lScopes;
+    	
+    	synchronized (mLock) {
+    		log("onDestroy", "Destroying " + mTasks.size() + " tasks, " + mDaemons.size() + " daemons and " + mChildScopes.size() + " child scopes");
+    		
+    		mUIAttached = false;
+    		
+    		lScopes = new ArrayList<ChildScope>(mChildScopes.values());
+    		lScopes.add(new ChildScope(mTasks, mDaemons));
+    		
+    		mTasks = new HashMap<String, ITask>();
+    		mDaemons = new HashMap<String, IDaemon>();
+    		mChildScopes.clear();
+    	}
+    	
+    	ObserverRegistry.detach(this);
+    	
+    	for (ChildScope lScope : lScopes) {
+    		lScope.destroy();
+    	}
     }
     
     @Override
@@ -59,6 +89,9 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
     	
 	    synchronized (mLock) {
             mUIAttached = true;
+            mBudget.wake();
+            
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
 
             if (mTasks.size() > 0) {
             	log("onResume", "Announcing UI attachment to " + mTasks.size() + " tasks");
@@ -75,7 +108,11 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
 	            	mDaemons.get(key).onResume(this);
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
     	}
+    	
+    	ObserverRegistry.attach(this);
     }
     
     @Override
@@ -85,6 +122,10 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
 	    synchronized (mLock) {
             mUIAttached = false;
             
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
+            
+            ObserverRegistry.detach(this);
+            
             if (mTasks.size() > 0) {
             	log("onPause", "Announcing UI detachment to " + mTasks.size() + " tasks");
             	
@@ -100,6 +141,8 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
 	            	mDaemons.get(key).onPause();
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
     	}
     }
     
@@ -157,32 +200,50 @@ public class SupportTaskManager extends Fragment implements IManager, IParentMan
     public Boolean isUIAttached() {
     	return mUIAttached;
     }
+    
+    @Override
+    public TaskQueue getTaskQueue() {
+    	return mQueue;
+    }
+    
+    @Override
+    public PendingBudget getPendingBudget() {
+    	return mBudget;
+    }
 
-	@Override
-	public void addChildTasks(String aClass, Map<String, ITask> aTasks) {
-		log("addChildTasks", "Storing child tasks from " + aClass);
-		
-		mChildTasks.put(aClass, aTasks);
-	}
-
-	@Override
-	public Map<String, ITask> getChildTasks(String aClass) {
-		log("getChildTasks", "Returning child tasks to " + aClass);
-		
-		return mChildTasks.remove(aClass);
-	}
+    /*
+     * Scopes parked by stopped child fragments are trimmed as well, as nothing else can reach them
+     */
+    @Override
+    public void trimMemory(Integer aLevel) {
+    	ArrayList<ChildScope> lScopes;
+    	
+    	synchronized (mLock) {
+    		lScopes = new ArrayList<ChildScope>(mChildScopes.values());
+    	}
+    	
+    	MemoryTrimmer.trim(mLock, mTasks, mDaemons, aLevel);
+    	
+    	for (ChildScope lScope : lScopes) {
+    		MemoryTrimmer.trim(mLock, lScope.getTasks(), lScope.getDaemons(), aLevel);
+    	}
+    }
 
 	@Override
-	public void addChildDaemons(String aClass, Map<String, IDaemon> aDaemons) {
-		log("addChildTasks", "Storing child daemons from " + aClass);
-		
-		mChildDaemons.put(aClass, aDaemons);
+	public void addChildScope(String aId, ChildScope aScope) {
+		synchronized (mLock) {
+			log("addChildScope", "Storing child scope " + aId);
+			
+			mChildScopes.put(aId, aScope);
+		}
 	}
 
 	@Override
-	public Map<String, IDaemon> getChildDaemons(String aClass) {
-		log("getChildDaemons", "Returning child daemons to " + aClass);
-		
-		return mChildDaemons.remove(aClass);
+	public ChildScope getChildScope(String aId) {
+		synchronized (mLock) {
+			log("getChildScope", "Returning child scope " + aId);
+			
+			return mChildScopes.remove(aId);
+		}
 	}
 }
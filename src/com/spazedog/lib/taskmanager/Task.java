@@ -19,9 +19,12 @@
 
 package com.spazedog.lib.taskmanager;
 
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -31,8 +34,11 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.ProgressDialog;
+import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Looper;
+import android.os.MessageQueue;
 
 public abstract class Task<Params, Progress, Result> implements ITask {
 	
@@ -58,6 +64,170 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 	private ProgressDialog mProgressDialog;
 	private String mProgressMessage;
 	
+	private ProgressUpdate mProgressPool;
+	
+	private int mIntProgress;
+	private Boolean mIntProgressQueued = false;
+	
+	private long mLongProgress;
+	private long mLongProgressTotal;
+	private Boolean mLongProgressQueued = false;
+	
+	/*
+	 * The values being delivered, only touched on the main thread. 
+	 * They let the callbacks below be allocated once instead of for each update.
+	 */
+	private int mIntProgressDelivered;
+	private long mLongProgressDelivered;
+	private long mLongProgressTotalDelivered;
+	
+	private final Runnable mIntProgressCallback = new Runnable() {
+		public void run() {
+			Task.this.onProgressUpdate(mIntProgressDelivered);
+		}
+	};
+	
+	private final Runnable mLongProgressCallback = new Runnable() {
+		public void run() {
+			Task.this.onProgressUpdate(mLongProgressDelivered, mLongProgressTotalDelivered);
+		}
+	};
+	
+	private final Runnable mIntProgressUpdate = new Runnable() {
+		public void run() {
+			synchronized (mLock) {
+				mIntProgressDelivered = mIntProgress;
+				mIntProgressQueued = false;
+			}
+			
+			TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.deliver", mCaller);
+			invoke("onProgressUpdate", mIntProgressCallback);
+			
+			ObserverRegistry.publishIntProgress(getOwner(), mCaller, mIntProgressDelivered);
+		}
+	};
+	
+	private final Runnable mLongProgressUpdate = new Runnable() {
+		public void run() {
+			synchronized (mLock) {
+				mLongProgressDelivered = mLongProgress;
+				mLongProgressTotalDelivered = mLongProgressTotal;
+				mLongProgressQueued = false;
+			}
+			
+			TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.deliver", mCaller);
+			invoke("onProgressUpdate", mLongProgressCallback);
+			
+			ObserverRegistry.publishLongProgress(getOwner(), mCaller, mLongProgressDelivered, mLongProgressTotalDelivered);
+		}
+	};
+	
+	private Params[] mParams;
+	
+	private Integer mPriority = 0;
+	private TaskQueue mQueue;
+	
+	private ResultCache mCache;
+	private ISerializer<Result> mSerializer;
+	
+	private ResultCache mJournal;
+	private ISerializer<Result> mJournalSerializer;
+	private String mJournalKey;
+	private Boolean mJournaled = false;
+	
+	private Long mChunkBudget;
+	
+	private ISizeEstimator<Result> mEstimator;
+	private long mResultSize = 0;
+	
+	private Params[] mPrefetchParams;
+	private Boolean mPrefetchPending = false;
+	private Boolean mPrefetchAttached = false;
+	private Boolean mPrefetched = false;
+	
+	private Boolean mDestroyed = false;
+	
+	private final MessageQueue.IdleHandler mPrefetch = new MessageQueue.IdleHandler() {
+		@Override
+		public boolean queueIdle() {
+			synchronized (mLock) {
+				if (!mPrefetchPending) {
+					return false;
+				}
+				
+				if (mManager == null || mManager.get() == null) {
+					log("prefetch", "[" + mCaller + "] The manager is gone, dropping the prefetch");
+					
+					mPrefetchPending = false;
+					mPrefetchParams = null;
+					
+					return false;
+					
+				} else if (!mManager.get().isUIAttached()) {
+					if (mPrefetchAttached) {
+						log("prefetch", "[" + mCaller + "] The UI was detached before the main thread went idle, dropping the prefetch");
+						
+						mPrefetchPending = false;
+						mPrefetchParams = null;
+						
+						return false;
+					}
+					
+					return true;
+				}
+				
+				mPrefetchPending = false;
+				mPrefetched = true;
+			}
+			
+			log("prefetch", "[" + mCaller + "] The main thread is idle, starting the prefetch");
+			
+			try {
+				execute(mPrefetchParams);
+				
+			} catch (IllegalStateException e) {
+				log("prefetch", "[" + mCaller + "] The Task has already been started, skipping the prefetch");
+			}
+			
+			mPrefetchParams = null;
+			
+			return false;
+		}
+	};
+	
+	private final Runnable mPrefetchInstall = new Runnable() {
+		@Override
+		public void run() {
+			Looper.myQueue().addIdleHandler(mPrefetch);
+		}
+	};
+	
+	private final Runnable mPrefetchRemove = new Runnable() {
+		@Override
+		public void run() {
+			Looper.myQueue().removeIdleHandler(mPrefetch);
+		}
+	};
+	
+	private final TaskFuture<Result> mFuture = new TaskFuture<Result>() {
+		@Override
+		protected void onCancel(boolean mayInterruptIfRunning) {
+			Task.this.cancel(mayInterruptIfRunning);
+		}
+	};
+	
+	private final Runnable mStart = new Runnable() {
+		public void run() {
+			start(mParams);
+		}
+	};
+	
+	private final Runnable mCancelledCallback = new Runnable() {
+		public void run() {
+			Task.this.onCancelled();
+		}
+	};
+	
 	private static void log(String aMethod, String aMessage) {
 		Utils.log(TAG, aMethod, aMessage);
 	}
@@ -104,6 +274,40 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 		return null;
 	}
 	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public final static ITask getTask(android.app.Application aApplication, String aTag) {
+		IManager lManager = Utils.getManager(aApplication);
+		
+		if (lManager != null) {
+			return lManager.getTask(aTag);
+		}
+		
+		return null;
+	}
+	
+	public final static void observe(android.support.v4.app.Fragment aFragment, String aTag, IObserver<?, ?> aObserver) {
+		ObserverRegistry.observe(Utils.getManager(aFragment), aTag, aObserver);
+	}
+	
+	public final static void observe(android.support.v4.app.FragmentActivity aActivity, String aTag, IObserver<?, ?> aObserver) {
+		ObserverRegistry.observe(Utils.getManager(aActivity), aTag, aObserver);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	public final static void observe(android.app.Fragment aFragment, String aTag, IObserver<?, ?> aObserver) {
+		ObserverRegistry.observe(Utils.getManager(aFragment), aTag, aObserver);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public final static void observe(android.app.Activity aActivity, String aTag, IObserver<?, ?> aObserver) {
+		ObserverRegistry.observe(Utils.getManager(aActivity), aTag, aObserver);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public final static void observe(android.app.Application aApplication, String aTag, IObserver<?, ?> aObserver) {
+		ObserverRegistry.observe(Utils.getManager(aApplication), aTag, aObserver);
+	}
+	
 	public Task(android.support.v4.app.Fragment aFragment, String aTag) {
 		log("construct", "[" + aTag + "] Initiating a new Task");
 		
@@ -138,6 +342,14 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 		mManager = new WeakReference<IManager>(Utils.getManager(aActivity));
 	}
 	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public Task(android.app.Application aApplication, String aTag) {
+		log("construct", "[" + aTag + "] Initiating a new Task");
+		
+		mCaller = aTag;
+		mManager = new WeakReference<IManager>(Utils.getManager(aApplication));
+	}
+	
 	@Override
 	public void onAttachUI(IManager manager) {
 		synchronized (mLock) {
@@ -162,8 +374,13 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 					Map<String, Runnable> lPending = mPendingMethods;
 					mPendingMethods = new HashMap<String, Runnable>();
 					
+					TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "pending.drain", mCaller);
+					
+					/*
+					 * Pending methods already passed the executed check when they were queued
+					 */
 					for (String name : lPending.keySet()) {
-						run(name, lPending.get(name));
+						run(name, lPending.get(name), SKIP_CHECK);
 					}
 				}
 				
@@ -178,6 +395,16 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 		synchronized (mLock) {
 			log("onDetachUI", "[" + mCaller + "] Leaving UI state");
 			
+			/*
+			 * The same screen comes straight back after a configuration change, so the prefetch is still wanted
+			 */
+			if (mPrefetched && !mExecutedMethods.contains("onPostExecute") && !mExecutedMethods.contains("onCancelled") && !isChangingConfigurations()) {
+				log("onDetachUI", "[" + mCaller + "] Cancelling the prefetch");
+				
+				mPrefetched = false;
+				cancel(false);
+			}
+			
 			if (mReady) {
 				handleProgressMessage(false);
 				
@@ -194,6 +421,71 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 		}
 	}
 	
+	@Override
+	public void onTrimMemory(Integer aLevel) {
+		Boolean lCancel = false;
+		
+		synchronized (mLock) {
+			if (MemoryTrimmer.isLow(aLevel) && mPendingMethods.size() > 0) {
+				Iterator<Map.Entry<String, Runnable>> lIterator = mPendingMethods.entrySet().iterator();
+				
+				while (lIterator.hasNext()) {
+					Map.Entry<String, Runnable> lEntry = lIterator.next();
+					
+					if (lEntry.getKey().startsWith("onProgressUpdate")) {
+						log("onTrimMemory", "[" + mCaller + "] Dropping pending method " + lEntry.getKey() + "()");
+						
+						if (lEntry.getValue() instanceof PendingMethod) {
+							((PendingMethod) lEntry.getValue()).discard();
+						}
+						
+						lIterator.remove();
+					}
+				}
+				
+				mIntProgressQueued = false;
+				mLongProgressQueued = false;
+			}
+			
+			if (MemoryTrimmer.isCritical(aLevel) && mPriority < 0) {
+				lCancel = !mExecutedMethods.contains("onPostExecute") && !mExecutedMethods.contains("onCancelled");
+			}
+		}
+		
+		if (lCancel) {
+			log("onTrimMemory", "[" + mCaller + "] Cancelling low priority Task");
+			
+			cancel(false);
+		}
+	}
+	
+	/*
+	 * The host is finishing for good. Nothing will be delivered from here on, 
+	 * so pending methods are released and the background work is cancelled.
+	 */
+	@Override
+	public void onDestroy() {
+		synchronized (mLock) {
+			log("onDestroy", "[" + mCaller + "] The host is finishing, destroying this Task");
+			
+			mDestroyed = true;
+			
+			for (Runnable lPending : mPendingMethods.values()) {
+				if (lPending instanceof PendingMethod) {
+					((PendingMethod) lPending).discard();
+				}
+			}
+			
+			mPendingMethods.clear();
+			
+			handleProgressMessage(false);
+			
+			mManager = null;
+		}
+		
+		cancel(true);
+	}
+	
 	private void run(String aMethod, Runnable aCode) {
 		synchronized (mLock) {
 			run(aMethod, aCode, RUN_NORMAL);
@@ -203,19 +495,25 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 	private void run(String aMethod, Runnable aCode, Integer aAction) {
 		synchronized (mLock) {
 			if (aAction > RUN_NORMAL || !mExecutedMethods.contains(aMethod)) {
-				if (!mExecutedMethods.contains("onPostExecute") && !mExecutedMethods.contains("onCancelled")) {
+				if (!mDestroyed && !mExecutedMethods.contains("onPostExecute") && !mExecutedMethods.contains("onCancelled")) {
 					if (aAction < SKIP_ALL && (mPendingMethods.size() > 0 || mManager == null || mManager.get() == null || !mManager.get().isUIAttached())) {
 						log("run", "[" + mCaller + "] The UI is currently not pressent, adding method " + aMethod + "() to the pending list");
-						mPendingMethods.put(aMethod, aCode);
+						TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "pending.enqueue", mCaller);
+						if (aCode instanceof PendingMethod) {
+							((PendingMethod) aCode).hold();
+						}
 						
-					} else if (aAction == SKIP_ALL || (mManager != null && mManager.get() != null && mManager.get().isUIAttached())) {
-						if (mSupport) {
-							((android.support.v4.app.FragmentActivity) getActivityObject()).runOnUiThread(aCode);
-							
-						} else {
-							((android.app.Activity) getActivityObject()).runOnUiThread(aCode);
+						Runnable lPrevious = mPendingMethods.put(aMethod, aCode);
+						
+						if (lPrevious != aCode && lPrevious instanceof PendingMethod) {
+							((PendingMethod) lPrevious).discard();
 						}
 						
+					} else if (aAction == SKIP_ALL || (mManager != null && mManager.get() != null && mManager.get().isUIAttached())) {
+						TraceRecorder.begin(TraceRecorder.CATEGORY_TASK, "dispatch", mCaller);
+						Utils.runOnUiThread(aCode);
+						TraceRecorder.end(TraceRecorder.CATEGORY_TASK, "dispatch", mCaller);
+						
 						if (!mExecutedMethods.contains(aMethod)) {
 							mExecutedMethods.add(aMethod);
 						}
@@ -242,22 +540,45 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 	
 	private void runUIReady(Boolean aForce) {
 		if (aForce || mExecutedMethods.contains("onPreExecute")) {
-			log("run", "[" + mCaller + "] Executing method onUIReady()");
-			
-			onUIReady();
+			invoke("onUIReady", new Runnable() {
+				public void run() {
+					onUIReady();
+				}
+			});
 		}
 	}
 	
 	private void runUIPause(Boolean aForce) {
 		if (aForce || mExecutedMethods.contains("onUIReady")) {
-			log("run", "[" + mCaller + "] Executing method onUIPause()");
-			onUIPause();
+			invoke("onUIPause", new Runnable() {
+				public void run() {
+					onUIPause();
+				}
+			});
 		}
 	}
 	
+	/*
+	 * Every user callback on the main thread goes through here, so that it is logged, traced and measured the same way
+	 */
+	void invoke(String aMethod, Runnable aCode) {
+		log("run", "[" + mCaller + "] Executing method " + aMethod + "()");
+		
+		CallbackMonitor.invoke(TraceRecorder.CATEGORY_TASK, aMethod, mCaller, aCode);
+	}
+	
+	private Boolean isChangingConfigurations() {
+		Object lActivity = getActivityObject();
+		
+		return lActivity instanceof Activity && ((Activity) lActivity).getChangingConfigurations() != 0;
+	}
+	
 	@SuppressLint("NewApi")
 	public Object getActivityObject() {
         if (mManager != null) {
+        	if (mManager.get() instanceof ApplicationManager)
+        		return ((ApplicationManager) mManager.get()).getActivity();
+        	
 		    if (mSupport) 
 			    return ((android.support.v4.app.Fragment) mManager.get()).getActivity();
 		
@@ -286,6 +607,12 @@ public abstract class Task<Params, Progress, Result> implements ITask {
 		return null;
 	}
 	
+    protected Boolean isUIAttached() {
+    	synchronized (mLock) {
+    		return mReady && mManager != null && mManager.get() != null && mManager.get().isUIAttached();
+    	}
+    }
+    
     private void handleProgressMessage(Boolean display) {
     	if (display && mProgressMessage != null) {
 	    	if (!mExecutedMethods.contains("onPostExecute") && !mExecutedMethods.contains("onCancelled")) {
@@ -319,6 +646,10 @@ public abstract class Task<Params, Progress, Result> implements ITask {
     protected void onPreExecute() {}
     protected abstract Result doInBackground(Params... params);
     protected void onProgressUpdate(Progress... values) {}
+    protected void onProgressUpdate(int value) {}
+    protected void onProgressUpdate(long value, long total) {}
+    protected void onCachedResult(Result result) {}
+    protected void onPostExecuteChunk(Result result, Integer start, Integer end) {}
     protected void onPostExecute(Result result) {}
     protected void onCancelled() {}
     
@@ -329,11 +660,95 @@ public abstract class Task<Params, Progress, Result> implements ITask {
     }
     
     public void publishProgress(Progress... values) {
+    	TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.post", mCaller);
+    	
     	cTask.publicPublishProgress(values);
     }
     
+    /*
+     * Primitive progress does not pass through AsyncTask, so no boxing or varargs array is needed. 
+     * Only one update of each kind is on its way to the UI at any time, it will carry the newest value once it gets there.
+     */
+    public void publishIntProgress(int value) {
+    	TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.post", mCaller);
+    	
+    	synchronized (mLock) {
+    		mIntProgress = value;
+    		
+    		if (mIntProgressQueued) {
+    			return;
+    		}
+    		
+    		mIntProgressQueued = true;
+    	}
+    	
+    	run("onProgressUpdate(int)", mIntProgressUpdate, SKIP_CHECK);
+    }
+    
+    public void publishLongProgress(long value, long total) {
+    	TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.post", mCaller);
+    	
+    	synchronized (mLock) {
+    		mLongProgress = value;
+    		mLongProgressTotal = total;
+    		
+    		if (mLongProgressQueued) {
+    			return;
+    		}
+    		
+    		mLongProgressQueued = true;
+    	}
+    	
+    	run("onProgressUpdate(long, long)", mLongProgressUpdate, SKIP_CHECK);
+    }
+    
+    private IManager getOwner() {
+    	WeakReference<IManager> lManager = mManager;
+    	
+    	return lManager != null ? lManager.get() : null;
+    }
+    
+    /*
+     * The queue is only known once execute() has been called, and a Task can be cancelled before that
+     */
+    private void removeFromQueue() {
+    	TaskQueue lQueue = mQueue;
+    	
+    	if (lQueue != null) {
+    		lQueue.remove(this);
+    	}
+    }
+    
     public boolean cancel(boolean mayInterruptIfRunning) {
-        return cTask.cancel(mayInterruptIfRunning);
+    	Boolean lPrefetchPending;
+    	
+    	synchronized (mLock) {
+    		lPrefetchPending = mPrefetchPending;
+    		
+    		mPrefetchPending = false;
+    		mPrefetchParams = null;
+    	}
+    	
+    	if (lPrefetchPending) {
+    		Utils.runOnUiThread(mPrefetchRemove);
+    	}
+    	
+        Boolean lCancelled = cTask.cancel(mayInterruptIfRunning);
+        
+        if (Governor.remove(mStart)) {
+        	/*
+        	 * Still waiting in the Governor queue. Run it outside the limits so that 
+        	 * onCancelled() is delivered without ever calling doInBackground(). 
+        	 * AsyncTask must be executed from the main thread.
+        	 */
+        	Utils.runOnUiThread(new Runnable() {
+        		public void run() {
+        			start(mParams);
+        		}
+        	});
+        }
+        
+        return lCancelled;
     }
 
     public boolean isCancelled() {
@@ -348,19 +763,144 @@ public abstract class Task<Params, Progress, Result> implements ITask {
         return cTask.get(timeout, unit);
     }
 
+    /*
+     * Completed as soon as the result is ready, whether or not the UI is attached at that time
+     */
+    public TaskFuture<Result> getFuture() {
+    	return mFuture;
+    }
+    
     public AsyncTask.Status getStatus() {
         return cTask.getStatus();
     }
     
+    /*
+     * The last result is kept in the cache, keyed by the tag and parameters. Whenever this Task 
+     * is executed again, a cached result is first handed to onCachedResult() while doInBackground() computes a fresh one.
+     */
+    public void setCache(ResultCache aCache, ISerializer<Result> aSerializer) {
+    	mCache = aCache;
+    	mSerializer = aSerializer;
+    }
+    
+    /*
+     * A durable Task writes its result to the journal when its delivery is deferred, and removes it once onPostExecute() has been called. 
+     * If the process dies in between, the next execution with the same tag and parameters is handed the journaled result instead of computing it again.
+     */
+    public void setDurable(Context aContext, ISerializer<Result> aSerializer) {
+    	mJournal = aContext != null ? ResultCache.getJournal(aContext) : null;
+    	mJournalSerializer = aSerializer;
+    }
+    
+    /*
+     * When the result is a List, it is handed to onPostExecuteChunk() in slices, one slice per main thread turn, 
+     * where each slice is sized to fit within the budget. onPostExecute() is called after the last slice. 
+     * Pass null to deliver the whole result in one turn again.
+     */
+    public void setChunkedDelivery(Integer aBudgetMillis) {
+    	mChunkBudget = aBudgetMillis != null && aBudgetMillis > 0 ? aBudgetMillis * 1000000L : null;
+    }
+    
+    /*
+     * A result held back while the UI is detached is counted against the manager's PendingBudget using this estimator
+     */
+    public void setSizeEstimator(ISizeEstimator<Result> aEstimator) {
+    	mEstimator = aEstimator;
+    }
+    
+    public void setPriority(Integer aPriority) {
+    	mPriority = aPriority;
+    }
+    
+    public Integer getPriority() {
+    	return mPriority;
+    }
+    
+    /*
+     * Speculatively executes this Task once the main thread has gone idle while the UI is attached, 
+     * so that loading data for the next screen does not compete with drawing the current one. 
+     * The prefetch is dropped or cancelled when the host pauses before it has finished, 
+     * unless the host is only being recreated for a configuration change.
+     */
+    public void prefetch(Params... params) throws IllegalStateException {
+    	synchronized (mLock) {
+    		if (mManager == null || mManager.get() == null || mManager.get().getTask(mCaller) != null || mPrefetchPending) {
+    			throw new IllegalStateException("This task has either already been started, or has finished!");
+    		}
+    		
+    		TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "prefetch", mCaller);
+    		
+    		mPrefetchParams = params;
+    		mPrefetchPending = true;
+    		mPrefetchAttached = mManager.get().isUIAttached();
+    	}
+    	
+    	Utils.runOnUiThread(mPrefetchInstall);
+    }
+    
     public void execute(Params... params) throws IllegalStateException {
     	if (mManager != null && mManager.get().getTask(mCaller) == null) {
+    		TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "execute", mCaller);
+    		
+    		mQueue = mManager.get().getTaskQueue();
+    		
+    		Integer lState = mQueue.offer(this, mCaller);
+    		
     		mManager.get().addTask(mCaller, this);
-    		cTask.execute(params);
+    		
+    		mParams = params;
+    		
+    		ObserverRegistry.resetProgress(mManager.get(), mCaller);
+    		
+    		if (lState == TaskQueue.QUEUED) {
+    			Governor.submit(mCaller, mStart);
+    			
+    		} else {
+    			if (lState == TaskQueue.DROPPED) {
+    				cTask.cancel(false);
+    			}
+    			
+    			start(params);
+    		}
     		
     	} else {
     		throw new IllegalStateException("This task has either already been started, or has finished!");
     	}
     }
+    
+    /*
+     * Since Honeycomb AsyncTask runs everything on one serial executor, 
+     * so a Task that may wait for the UI is moved to the thread pool to keep it from stalling all others
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void start(Params[] aParams) {
+    	if (isBlocking() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+    		cTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, aParams);
+    		
+    	} else {
+    		cTask.execute(aParams);
+    	}
+    }
+    
+    /*
+     * Subclasses whose doInBackground() can wait on the UI return true
+     */
+    Boolean isBlocking() {
+    	return false;
+    }
+    
+    /*
+     * Called on the main thread once doInBackground() has returned. 
+     * Subclasses that still have items queued for the UI can hold the result back and call this again once they are delivered.
+     */
+    void postResult(Result aResult) {
+    	if (mChunkBudget != null && aResult instanceof List && ((List<?>) aResult).size() > 0) {
+    		run("onPostExecuteChunk", new ChunkDelivery(aResult, ((List<?>) aResult).size()), SKIP_CHECK);
+    		
+    	} else {
+    		deliverResult(aResult);
+    	}
+    }
 	
 	/* ###
 	 * # Internal AsyncTask instance
@@ -378,58 +918,383 @@ public abstract class Task<Params, Progress, Result> implements ITask {
                         
                     }, SKIP_ALL);
                     
-                    log("run", "[" + mCaller + "] Executing method onPreExecute()");
-                    Task.this.onPreExecute();
+                    invoke("onPreExecute", new Runnable() {
+                        public void run() {
+                            Task.this.onPreExecute();
+                        }
+                    });
                 }
             });
         }
         
 		@Override
 		protected Result doInBackground(Params... params) {
+			/*
+			 * A Task destroyed before onPreExecute() was delivered will never have it delivered, 
+			 * so cancellation and destruction also release the gate
+			 */
 			while (!Task.this.mExecutedMethods.contains("onPreExecute")) {
+				if (isCancelled() || Task.this.mDestroyed) {
+					break;
+				}
+				
 				try {
 					Thread.sleep(300);
 					
-				} catch (InterruptedException e) {}
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			
+			TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "gate.released", Task.this.mCaller);
+			
+			Task.this.removeFromQueue();
+			
+			if (isCancelled() || Task.this.mDestroyed || !Task.this.mExecutedMethods.contains("onPreExecute")) {
+				return null;
+			}
+			
+			if (Task.this.mJournal != null) {
+				Task.this.mJournalKey = ResultCache.key(Task.this.mCaller, params);
+				
+				Result lJournaled = Task.this.mJournal.get(Task.this.mJournalKey, Task.this.mJournalSerializer);
+				
+				if (lJournaled != null) {
+					Task.log("run", "[" + Task.this.mCaller + "] Restoring the result from the journal, skipping doInBackground()");
+					
+					Task.this.mJournaled = true;
+					
+					return lJournaled;
+				}
+			}
+			
+			String lKey = null;
+			
+			if (Task.this.mCache != null) {
+				lKey = ResultCache.key(Task.this.mCaller, params);
+				
+				final Result lCached = Task.this.mCache.get(lKey, Task.this.mSerializer);
+				
+				if (lCached != null) {
+		            Task.this.run("onCachedResult", new Runnable() {
+		                public void run() {
+		                    invoke("onCachedResult", new Runnable() {
+		                        public void run() {
+		                            Task.this.onCachedResult(lCached);
+		                        }
+		                    });
+		                }
+		            });
+				}
 			}
 			
 			Task.log("run", "[" + Task.this.mCaller + "] Executing method doInBackground()");
 
-            return Task.this.doInBackground(params);
+            TraceRecorder.begin(TraceRecorder.CATEGORY_TASK, "doInBackground", Task.this.mCaller);
+            
+            Result lResult = Task.this.doInBackground(params);
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_TASK, "doInBackground", Task.this.mCaller);
+            
+            if (lKey != null && lResult != null && !isCancelled()) {
+            	Task.this.mCache.put(lKey, lResult, Task.this.mSerializer);
+            }
+            
+            /*
+             * The result is already in memory at this point, so POLICY_BLOCK has nothing to hold back, 
+             * and waiting here would only stall the other Tasks sharing the executor
+             */
+            if (Task.this.mEstimator != null && lResult != null && !isCancelled()) {
+            	Task.this.mResultSize = Task.this.mEstimator.sizeOf(lResult);
+            }
+            
+            return lResult;
 		}
 		
         @Override
-        protected void onProgressUpdate(final Progress... values) {
-            run("onProgressUpdate", new Runnable() {
-                public void run() {
-                	log("run", "[" + mCaller + "] Executing method onProgressUpdate()");
-                    Task.this.onProgressUpdate(values);
-                }
-                
-            }, SKIP_CHECK);
+        protected void onProgressUpdate(Progress... values) {
+            run("onProgressUpdate", obtainProgress(values), SKIP_CHECK);
         }
         
         @Override
         protected void onPostExecute(final Result result) {
-            run("onPostExecute", new Runnable() {
-                public void run() {
-                	log("run", "[" + mCaller + "] Executing method onPostExecute()");
-                    Task.this.onPostExecute(result);
-                }
-            });
+        	Governor.release(mStart);
+        	removeFromQueue();
+        	mFuture.complete(result);
+        	
+        	postResult(result);
         }
         
         @Override
         protected void onCancelled() {
+        	Governor.release(mStart);
+        	removeFromQueue();
+        	mFuture.cancel(false);
+        	
             run("onCancelled", new Runnable() {
                 public void run() {
-                	log("run", "[" + mCaller + "] Executing method onCancelled()");
-                    Task.this.onCancelled();
+                    invoke("onCancelled", mCancelledCallback);
                 }
             });
         }
     };
     
+    private void deliverResult(Result aResult) {
+        run("onPostExecute", new ResultDelivery(aResult));
+    }
+    
+    /*
+     * Runnables that own something while they wait in the pending list. 
+     * The interface is not generic, so checking for it needs no unchecked cast.
+     */
+    private interface PendingMethod extends Runnable {
+    	public void hold();
+    	public void discard();
+    }
+    
+    /*
+     * A result waiting for the UI. While it is pending it is counted against the manager's PendingBudget, 
+     * and depending on the budget policy it may be spilled to a SoftReference or dropped.
+     */
+    private abstract class HeldResult implements PendingMethod {
+    	private Result mResult;
+    	private SoftReference<Result> mSpilled;
+    	private PendingBudget mBudget;
+    	private Boolean mDropped = false;
+    	
+    	HeldResult(Result aResult) {
+    		mResult = aResult;
+    	}
+    	
+    	@Override
+    	public void hold() {
+    		/*
+    		 * Only a result that is held back for the UI is at risk of being lost with the process, 
+    		 * so this is the only place where it is written to the journal
+    		 */
+    		if (mJournal != null && mJournalKey != null && mResult != null && !mJournaled) {
+    			mJournal.putAsync(mJournalKey, mResult, mJournalSerializer);
+    			mJournaled = true;
+    		}
+    		
+    		IManager lManager = mManager != null ? mManager.get() : null;
+    		
+    		if (mResultSize <= 0 || mResult == null || mBudget != null || lManager == null) {
+    			return;
+    		}
+    		
+    		PendingBudget lBudget = lManager.getPendingBudget();
+    		Integer lState = lBudget.reserve(mResultSize, mCaller);
+    		
+    		if (lState == PendingBudget.ACCEPTED) {
+    			mBudget = lBudget;
+    			
+    		} else if (lState == PendingBudget.SPILLED) {
+    			mSpilled = new SoftReference<Result>(mResult);
+    			mResult = null;
+    			
+    		} else {
+    			log("hold", "[" + mCaller + "] The pending budget is exhausted, dropping the result");
+    			
+    			drop();
+    		}
+    	}
+    	
+    	Result take() {
+    		if (mBudget != null) {
+    			mBudget.release(mResultSize);
+    			mBudget = null;
+    		}
+    		
+    		if (mSpilled != null) {
+    			mResult = mSpilled.get();
+    			mSpilled = null;
+    			
+    			if (mResult == null) {
+    				log("take", "[" + mCaller + "] The spilled result was reclaimed before it could be delivered");
+    				
+    				mDropped = true;
+    			}
+    		}
+    		
+    		return mResult;
+    	}
+    	
+    	@Override
+    	public void discard() {
+    		take();
+    	}
+    	
+    	Boolean isDropped() {
+    		return mDropped;
+    	}
+    	
+    	void drop() {
+    		mResult = null;
+    		mDropped = true;
+    	}
+    }
+    
+    private final class ResultDelivery extends HeldResult {
+    	ResultDelivery(Result aResult) {
+    		super(aResult);
+    	}
+    	
+    	@Override
+    	public void run() {
+    		final Result lResult = take();
+    		
+    		if (isDropped()) {
+    			/*
+    			 * The result is gone, so the Task ends as if it had been cancelled. 
+    			 * A durable Task keeps its journal entry so that the result can be restored on the next execution.
+    			 */
+    			log("run", "[" + mCaller + "] The result was dropped");
+    			
+    			invoke("onCancelled", mCancelledCallback);
+    			
+    			return;
+    		}
+    		
+            invoke("onPostExecute", new Runnable() {
+                public void run() {
+                    Task.this.onPostExecute(lResult);
+                }
+            });
+            
+            ObserverRegistry.publishResult(getOwner(), mCaller, lResult);
+            
+            if (mJournaled) {
+            	mJournal.removeAsync(mJournalKey);
+            	mJournaled = false;
+            }
+    	}
+    }
+    
+    /*
+     * Delivers one slice of a List result per main thread turn. The slice size is adjusted after each 
+     * turn so that the time spent in onPostExecuteChunk() stays close to the budget.
+     */
+    private final class ChunkDelivery extends HeldResult {
+    	private final Integer mSize;
+    	private Integer mPosition = 0;
+    	private Integer mSlice = 1;
+    	
+    	private final Runnable mNext = new Runnable() {
+    		public void run() {
+    			Task.this.run("onPostExecuteChunk", ChunkDelivery.this, SKIP_CHECK);
+    		}
+    	};
+    	
+    	ChunkDelivery(Result aResult, Integer aSize) {
+    		super(aResult);
+    		
+    		mSize = aSize;
+    	}
+    	
+    	@Override
+    	public void run() {
+    		Result lResult = take();
+    		
+    		if (isDropped()) {
+    			ResultDelivery lDelivery = new ResultDelivery(null);
+    			lDelivery.drop();
+    			
+    			Task.this.run("onPostExecute", lDelivery);
+    			
+    			return;
+    		}
+    		
+    		final Result lChunk = lResult;
+    		final Integer lStart = mPosition;
+    		final Integer lEnd = Math.min(mPosition + mSlice, mSize);
+    		
+    		long lTime = System.nanoTime();
+    		invoke("onPostExecuteChunk", new Runnable() {
+    			public void run() {
+    				Task.this.onPostExecuteChunk(lChunk, lStart, lEnd);
+    			}
+    		});
+    		long lDuration = System.nanoTime() - lTime;
+    		
+    		Long lBudget = mChunkBudget;
+    		
+    		if (lBudget != null && lDuration > 0) {
+    			mSlice = (int) Math.max(1, Math.min(mSlice * 2L, (mSlice * lBudget) / lDuration));
+    		}
+    		
+    		mPosition = lEnd;
+    		
+    		if (mPosition < mSize) {
+    			Utils.getHandler().post(mNext);
+    			
+    		} else {
+    			deliverResult(lResult);
+    		}
+    	}
+    }
+    
+    private ProgressUpdate obtainProgress(Progress[] aValues) {
+    	synchronized (mLock) {
+    		ProgressUpdate lUpdate = mProgressPool;
+    		
+    		if (lUpdate != null) {
+    			mProgressPool = lUpdate.mNext;
+    			lUpdate.mNext = null;
+    			
+    		} else {
+    			lUpdate = new ProgressUpdate();
+    		}
+    		
+    		lUpdate.mValues = aValues;
+    		
+    		return lUpdate;
+    	}
+    }
+    
+    private void recycleProgress(ProgressUpdate aUpdate) {
+    	synchronized (mLock) {
+    		aUpdate.mValues = null;
+    		aUpdate.mNext = mProgressPool;
+    		
+    		mProgressPool = aUpdate;
+    	}
+    }
+    
+    /*
+     * Progress updates are frequent, so the runnables carrying them to the UI thread are 
+     * recycled rather than allocated for each update
+     */
+    private final class ProgressUpdate implements PendingMethod {
+    	private Progress[] mValues;
+    	private ProgressUpdate mNext;
+    	
+    	private final Runnable mCallback = new Runnable() {
+    		public void run() {
+    			Task.this.onProgressUpdate(mValues);
+    		}
+    	};
+    	
+    	@Override
+    	public void hold() {}
+    	
+    	@Override
+    	public void discard() {
+    		recycleProgress(this);
+    	}
+    	
+    	public void run() {
+    		Progress[] lValues = mValues;
+    		
+    		TraceRecorder.instant(TraceRecorder.CATEGORY_TASK, "progress.deliver", mCaller);
+    		invoke("onProgressUpdate", mCallback);
+    		
+    		recycleProgress(this);
+    		
+    		ObserverRegistry.publishProgress(getOwner(), mCaller, lValues);
+    	}
+    }
+    
 	public abstract class InnerAsyncTask<Params, Progress, Result> extends AsyncTask<Params, Progress, Result> {
     	public void publicPublishProgress(Progress... values) {
     		this.publishProgress(values);
@@ -0,0 +1,318 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TaskFuture<T> implements Future<T> {
+	/*
+	 * A future that can be composed without blocking. Callbacks and transformations 
+	 * are run on the Executor passed along with them, for example UI_THREAD or DIRECT.
+	 */
+	
+	public final static Executor DIRECT = new Executor() {
+		public void execute(Runnable aCode) {
+			aCode.run();
+		}
+	};
+	
+	public final static Executor UI_THREAD = new Executor() {
+		public void execute(Runnable aCode) {
+			Utils.runOnUiThread(aCode);
+		}
+	};
+	
+	private final Object mLock = new Object();
+	
+	private Boolean mDone = false;
+	private Boolean mCancelled = false;
+	
+	private T mResult;
+	private Throwable mError;
+	
+	private ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+	
+	public Boolean complete(T aResult) {
+		return finish(aResult, null, false);
+	}
+	
+	public Boolean fail(Throwable aError) {
+		return finish(null, aError, false);
+	}
+	
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (finish(null, new CancellationException(), true)) {
+			onCancel(mayInterruptIfRunning);
+			
+			return true;
+		}
+		
+		return false;
+	}
+	
+	protected void onCancel(boolean mayInterruptIfRunning) {}
+	
+	@Override
+	public boolean isCancelled() {
+		synchronized (mLock) {
+			return mCancelled;
+		}
+	}
+	
+	@Override
+	public boolean isDone() {
+		synchronized (mLock) {
+			return mDone;
+		}
+	}
+	
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		synchronized (mLock) {
+			while (!mDone) {
+				mLock.wait();
+			}
+			
+			return report();
+		}
+	}
+	
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long lDeadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		synchronized (mLock) {
+			while (!mDone) {
+				long lRemaining = lDeadline - System.nanoTime();
+				
+				if (lRemaining <= 0) {
+					throw new TimeoutException();
+				}
+				
+				TimeUnit.NANOSECONDS.timedWait(mLock, lRemaining);
+			}
+			
+			return report();
+		}
+	}
+	
+	public TaskFuture<T> whenComplete(final Callback<T> aCallback, final Executor aExecutor) {
+		Runnable lListener = new Runnable() {
+			public void run() {
+				aExecutor.execute(new Runnable() {
+					public void run() {
+						aCallback.onComplete(mResult, mError);
+					}
+				});
+			}
+		};
+		
+		synchronized (mLock) {
+			if (!mDone) {
+				mListeners.add(lListener);
+				
+				return this;
+			}
+		}
+		
+		lListener.run();
+		
+		return this;
+	}
+	
+	public <R> TaskFuture<R> thenApply(final Function<T, R> aFunction, Executor aExecutor) {
+		final TaskFuture<R> lNext = new TaskFuture<R>();
+		
+		whenComplete(new Callback<T>() {
+			public void onComplete(T aResult, Throwable aError) {
+				if (aError != null) {
+					lNext.fail(aError);
+					
+				} else {
+					try {
+						lNext.complete(aFunction.apply(aResult));
+						
+					} catch (Throwable e) {
+						lNext.fail(e);
+					}
+				}
+			}
+			
+		}, aExecutor);
+		
+		return lNext;
+	}
+	
+	public <U, R> TaskFuture<R> thenCombine(TaskFuture<U> aOther, final Combiner<T, U, R> aCombiner, Executor aExecutor) {
+		final TaskFuture<R> lNext = new TaskFuture<R>();
+		
+		allOf(this, aOther).whenComplete(new Callback<List<Object>>() {
+			@SuppressWarnings("unchecked")
+			public void onComplete(List<Object> aResults, Throwable aError) {
+				if (aError != null) {
+					lNext.fail(aError);
+					
+				} else {
+					try {
+						lNext.complete(aCombiner.combine((T) aResults.get(0), (U) aResults.get(1)));
+						
+					} catch (Throwable e) {
+						lNext.fail(e);
+					}
+				}
+			}
+			
+		}, aExecutor);
+		
+		return lNext;
+	}
+	
+	/*
+	 * Completes with all results in the same order as the futures, or fails with the first error
+	 */
+	public static TaskFuture<List<Object>> allOf(TaskFuture<?>... aFutures) {
+		final TaskFuture<List<Object>> lNext = new TaskFuture<List<Object>>();
+		final Object[] lResults = new Object[aFutures.length];
+		final int[] lRemaining = new int[] { aFutures.length };
+		
+		if (aFutures.length == 0) {
+			lNext.complete(new ArrayList<Object>());
+		}
+		
+		for (int i=0; i < aFutures.length; i++) {
+			final int lIndex = i;
+			
+			aFutures[i].whenAny(new Callback<Object>() {
+				public void onComplete(Object aResult, Throwable aError) {
+					if (aError != null) {
+						lNext.fail(aError);
+						
+					} else {
+						Boolean lLast;
+						
+						synchronized (lResults) {
+							lResults[lIndex] = aResult;
+							lLast = --lRemaining[0] == 0;
+						}
+						
+						if (lLast) {
+							lNext.complete(Arrays.asList(lResults));
+						}
+					}
+				}
+			});
+		}
+		
+		return lNext;
+	}
+	
+	/*
+	 * Completes or fails with whichever future is done first
+	 */
+	public static TaskFuture<Object> anyOf(TaskFuture<?>... aFutures) {
+		final TaskFuture<Object> lNext = new TaskFuture<Object>();
+		
+		if (aFutures.length == 0) {
+			lNext.complete(null);
+		}
+		
+		for (int i=0; i < aFutures.length; i++) {
+			aFutures[i].whenAny(new Callback<Object>() {
+				public void onComplete(Object aResult, Throwable aError) {
+					if (aError != null) {
+						lNext.fail(aError);
+						
+					} else {
+						lNext.complete(aResult);
+					}
+				}
+			});
+		}
+		
+		return lNext;
+	}
+	
+	private void whenAny(final Callback<Object> aCallback) {
+		whenComplete(new Callback<T>() {
+			public void onComplete(T aResult, Throwable aError) {
+				aCallback.onComplete(aResult, aError);
+			}
+			
+		}, DIRECT);
+	}
+	
+	private Boolean finish(T aResult, Throwable aError, Boolean aCancelled) {
+		ArrayList<Runnable> lListeners;
+		
+		synchronized (mLock) {
+			if (mDone) {
+				return false;
+			}
+			
+			mDone = true;
+			mCancelled = aCancelled;
+			mResult = aResult;
+			mError = aError;
+			
+			lListeners = mListeners;
+			mListeners = null;
+			
+			mLock.notifyAll();
+		}
+		
+		for (Runnable lListener : lListeners) {
+			lListener.run();
+		}
+		
+		return true;
+	}
+	
+	private T report() throws ExecutionException {
+		if (mCancelled) {
+			throw (CancellationException) mError;
+			
+		} else if (mError != null) {
+			throw new ExecutionException(mError);
+		}
+		
+		return mResult;
+	}
+	
+	public interface Callback<T> {
+		public void onComplete(T result, Throwable error);
+	}
+	
+	public interface Function<T, R> {
+		public R apply(T value) throws Exception;
+	}
+	
+	public interface Combiner<T, U, R> {
+		public R combine(T first, U second) throws Exception;
+	}
+}
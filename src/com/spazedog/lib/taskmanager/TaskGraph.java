@@ -0,0 +1,328 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+public class TaskGraph extends Task<Void, String, Map<String, Object>> {
+	/*
+	 * Runs a set of nodes where each node may depend on the results of others. 
+	 * Nodes are started on a thread pool shared by all graphs the moment all of their dependencies are done, 
+	 * so independent nodes run in parallel, using at most the number of threads set with setThreads(). Each finished node is announced through onNodeComplete() 
+	 * and the combined results are delivered to onPostExecute(), both using the normal attach/detach handling of Task.
+	 */
+	
+	public final static String TAG = "TaskGraph";
+	
+	private static ExecutorService sPool;
+	
+	private final Object mGraphLock = new Object();
+	
+	private final Map<String, Node<?>> mNodes = new LinkedHashMap<String, Node<?>>();
+	private final Map<String, String[]> mDependencies = new HashMap<String, String[]>();
+	private final Map<String, ArrayList<String>> mDependents = new HashMap<String, ArrayList<String>>();
+	
+	private final Map<String, Object> mResults = new HashMap<String, Object>();
+	private final Map<String, Throwable> mErrors = new HashMap<String, Throwable>();
+	
+	private final ConcurrentLinkedQueue<String> mCompleted = new ConcurrentLinkedQueue<String>();
+	
+	private Integer mThreads = Runtime.getRuntime().availableProcessors();
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	private static ExecutorService getPool() {
+		synchronized (TaskGraph.class) {
+			if (sPool == null) {
+				sPool = Executors.newCachedThreadPool();
+			}
+			
+			return sPool;
+		}
+	}
+	
+	public TaskGraph(android.support.v4.app.Fragment aFragment, String aTag) {
+		super(aFragment, aTag);
+	}
+	
+	public TaskGraph(android.support.v4.app.FragmentActivity aActivity, String aTag) {
+		super(aActivity, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public TaskGraph(android.app.Fragment aFragment, String aTag) {
+		super(aFragment, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public TaskGraph(android.app.Activity aActivity, String aTag) {
+		super(aActivity, aTag);
+	}
+	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public TaskGraph(android.app.Application aApplication, String aTag) {
+		super(aApplication, aTag);
+	}
+	
+	/*
+	 * Dependencies must be added before the nodes that depend on them, 
+	 * which also makes it impossible to build a cycle
+	 */
+	public TaskGraph addNode(String aName, Node<?> aNode, String... aDependencies) throws IllegalStateException {
+		synchronized (mGraphLock) {
+			if (getStatus() != android.os.AsyncTask.Status.PENDING) {
+				throw new IllegalStateException("Nodes cannot be added after the graph has been executed!");
+				
+			} else if (mNodes.containsKey(aName)) {
+				throw new IllegalStateException("The node " + aName + " has already been added!");
+			}
+			
+			for (String lDependency : aDependencies) {
+				if (!mNodes.containsKey(lDependency)) {
+					throw new IllegalStateException("The node " + aName + " depends on " + lDependency + " which has not been added!");
+				}
+			}
+			
+			mNodes.put(aName, aNode);
+			mDependencies.put(aName, aDependencies);
+			mDependents.put(aName, new ArrayList<String>());
+			
+			for (String lDependency : aDependencies) {
+				mDependents.get(lDependency).add(aName);
+			}
+			
+			return this;
+		}
+	}
+	
+	public TaskGraph setThreads(Integer aThreads) {
+		mThreads = aThreads;
+		
+		return this;
+	}
+	
+	public Throwable getError(String aName) {
+		synchronized (mGraphLock) {
+			return mErrors.get(aName);
+		}
+	}
+	
+	protected void onNodeComplete(String name, Object result) {}
+	protected void onNodeFailed(String name, Throwable error) {}
+	
+	@Override
+	protected final Map<String, Object> doInBackground(Void... params) {
+		Scheduler lScheduler = new Scheduler();
+		
+		lScheduler.start();
+		
+		synchronized (mGraphLock) {
+			return new HashMap<String, Object>(mResults);
+		}
+	}
+	
+	@Override
+	protected final void onProgressUpdate(String... names) {
+		String lName;
+		
+		/*
+		 * Progress updates replace each other while the UI is detached, 
+		 * so every update announces all nodes that have finished since the last one
+		 */
+		while ((lName = mCompleted.poll()) != null) {
+			Throwable lError = getError(lName);
+			
+			if (lError != null) {
+				onNodeFailed(lName, lError);
+				
+			} else {
+				Object lResult;
+				
+				synchronized (mGraphLock) {
+					lResult = mResults.get(lName);
+				}
+				
+				onNodeComplete(lName, lResult);
+			}
+		}
+	}
+	
+	/*
+	 * Every node is either run or skipped exactly once, after which the nodes 
+	 * depending on it are submitted if it was the last one they were waiting for. 
+	 * Submitted nodes wait in mPending until one of this graph's workers is free, 
+	 * and nothing is submitted once the graph has been interrupted.
+	 */
+	private final class Scheduler {
+		private final CountDownLatch mLatch = new CountDownLatch(mNodes.size());
+		private final Map<String, Integer> mWaiting = new HashMap<String, Integer>();
+		
+		private final Integer mLimit = Math.max(1, Math.min(mThreads, mNodes.size()));
+		private final ArrayList<String> mPending = new ArrayList<String>();
+		private final ArrayList<Future<?>> mWorkers = new ArrayList<Future<?>>();
+		private Integer mActive = 0;
+		private Boolean mStopped = false;
+		
+		private final Runnable mWorker = new Runnable() {
+			public void run() {
+				String lName;
+				
+				while ((lName = next()) != null) {
+					process(lName);
+				}
+			}
+		};
+		
+		public void start() {
+			for (String lName : mNodes.keySet()) {
+				mWaiting.put(lName, mDependencies.get(lName).length);
+			}
+			
+			for (String lName : mNodes.keySet()) {
+				if (mDependencies.get(lName).length == 0) {
+					submit(lName);
+				}
+			}
+			
+			try {
+				mLatch.await();
+				
+			} catch (InterruptedException e) {
+				synchronized (mGraphLock) {
+					mStopped = true;
+					mPending.clear();
+					
+					for (Future<?> lWorker : mWorkers) {
+						lWorker.cancel(true);
+					}
+				}
+				
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void submit(String aName) {
+			synchronized (mGraphLock) {
+				if (mStopped) {
+					return;
+				}
+				
+				mPending.add(aName);
+				
+				if (mActive < mLimit) {
+					mActive += 1;
+					mWorkers.add(getPool().submit(mWorker));
+				}
+			}
+		}
+		
+		private String next() {
+			synchronized (mGraphLock) {
+				if (mStopped || mPending.isEmpty()) {
+					mActive -= 1;
+					
+					return null;
+				}
+				
+				return mPending.remove(0);
+			}
+		}
+		
+		private void process(String aName) {
+			Map<String, Object> lInputs = new HashMap<String, Object>();
+			Throwable lError = null;
+			Object lResult = null;
+			
+			synchronized (mGraphLock) {
+				for (String lDependency : mDependencies.get(aName)) {
+					if (mErrors.containsKey(lDependency)) {
+						lError = new IllegalStateException("The dependency " + lDependency + " failed");
+						
+					} else {
+						lInputs.put(lDependency, mResults.get(lDependency));
+					}
+				}
+			}
+			
+			if (lError == null && isCancelled()) {
+				lError = new InterruptedException("The graph was cancelled");
+			}
+			
+			if (lError == null) {
+				try {
+					log("process", "[" + aName + "] Running node");
+					
+					lResult = mNodes.get(aName).run(lInputs);
+					
+				} catch (Throwable e) {
+					lError = e;
+				}
+			}
+			
+			ArrayList<String> lReady = new ArrayList<String>();
+			
+			synchronized (mGraphLock) {
+				if (lError != null) {
+					log("process", "[" + aName + "] The node failed: " + lError.getMessage());
+					
+					mErrors.put(aName, lError);
+					
+				} else {
+					mResults.put(aName, lResult);
+				}
+				
+				for (String lDependent : mDependents.get(aName)) {
+					Integer lCount = mWaiting.get(lDependent) - 1;
+					mWaiting.put(lDependent, lCount);
+					
+					if (lCount == 0) {
+						lReady.add(lDependent);
+					}
+				}
+			}
+			
+			mCompleted.add(aName);
+			publishProgress(aName);
+			
+			for (String lName : lReady) {
+				submit(lName);
+			}
+			
+			mLatch.countDown();
+		}
+	}
+	
+	public static abstract class Node<T> {
+		protected abstract T run(Map<String, Object> inputs) throws Exception;
+	}
+}
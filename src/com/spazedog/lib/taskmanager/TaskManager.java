@@ -19,6 +19,7 @@
 
 package com.spazedog.lib.taskmanager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,8 +37,10 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
     private Map<String, ITask> mTasks = new HashMap<String, ITask>();
     private Map<String, IDaemon> mDaemons = new HashMap<String, IDaemon>();
     
-    private Map<String, Map<String, ITask>> mChildTasks = new HashMap<String, Map<String, ITask>>();
-    private Map<String, Map<String, IDaemon>> mChildDaemons = new HashMap<String, Map<String, IDaemon>>();
+    private final TaskQueue mQueue = new TaskQueue();
+    private final PendingBudget mBudget = new PendingBudget();
+    
+    private Map<String, ChildScope> mChildScopes = new HashMap<String, ChildScope>();
     
     protected Boolean mUIAttached = false;
     
@@ -49,11 +52,38 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
+        
+        MemoryTrimmer.register(this, getActivity());
     }
     
+    /*
+     * The instance is retained, so this is only called when the host is finishing or the manager is removed. 
+     * Nothing can attach to these Tasks and Daemons again, so they are cancelled and stopped.
+     */
     @Override
     public void onDestroy() {
     	super.onDestroy();
+    	
+    	ArrayList<ChildScope> lScopes;
+    	
+    	synchronized (mLock) {
+    		log("onDestroy", "Destroying " + mTasks.size() + " tasks, " + mDaemons.size() + " daemons and " + mChildScopes.size() + " child scopes");
+    		
+    		mUIAttached = false;
+    		
+    		lScopes = new ArrayList<ChildScope>(mChildScopes.values());
+    		lScopes.add(new ChildScope(mTasks, mDaemons));
+    		
+    		mTasks = new HashMap<String, ITask>();
+    		mDaemons = new HashMap<String, IDaemon>();
+    		mChildScopes.clear();
+    	}
+    	
+    	ObserverRegistry.detach(this);
+    	
+    	for (ChildScope lScope : lScopes) {
+    		lScope.destroy();
+    	}
     }
     
     @Override
@@ -62,6 +92,9 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
     	
 	    synchronized (mLock) {
             mUIAttached = true;
+            mBudget.wake();
+            
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
 
             if (mTasks.size() > 0) {
             	log("onResume", "Announcing UI attachment to " + mTasks.size() + " tasks");
@@ -78,7 +111,11 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
 	            	mDaemons.get(key).onResume(this);
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "attach", TAG);
     	}
+    	
+    	ObserverRegistry.attach(this);
     }
     
     @Override
@@ -88,6 +125,10 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
 	    synchronized (mLock) {
             mUIAttached = false;
             
+            TraceRecorder.begin(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
+            
+            ObserverRegistry.detach(this);
+            
             if (mTasks.size() > 0) {
             	log("onPause", "Announcing UI detachment to " + mTasks.size() + " tasks");
             	
@@ -103,6 +144,8 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
 	            	mDaemons.get(key).onPause();
 	            }
             }
+            
+            TraceRecorder.end(TraceRecorder.CATEGORY_MANAGER, "detach", TAG);
     	}
     }
     
@@ -160,32 +203,50 @@ public class TaskManager extends Fragment implements IManager, IParentManager {
     public Boolean isUIAttached() {
     	return mUIAttached;
     }
+    
+    @Override
+    public TaskQueue getTaskQueue() {
+    	return mQueue;
+    }
+    
+    @Override
+    public PendingBudget getPendingBudget() {
+    	return mBudget;
+    }
 
-	@Override
-	public void addChildTasks(String aClass, Map<String, ITask> aTasks) {
-		log("addChildTasks", "Storing child tasks from " + aClass);
-		
-		mChildTasks.put(aClass, aTasks);
-	}
-
-	@Override
-	public Map<String, ITask> getChildTasks(String aClass) {
-		log("getChildTasks", "Returning child tasks to " + aClass);
-		
-		return mChildTasks.remove(aClass);
-	}
+    /*
+     * Scopes parked by stopped child fragments are trimmed as well, as nothing else can reach them
+     */
+    @Override
+    public void trimMemory(Integer aLevel) {
+    	ArrayList<ChildScope> lScopes;
+    	
+    	synchronized (mLock) {
+    		lScopes = new ArrayList<ChildScope>(mChildScopes.values());
+    	}
+    	
+    	MemoryTrimmer.trim(mLock, mTasks, mDaemons, aLevel);
+    	
+    	for (ChildScope lScope : lScopes) {
+    		MemoryTrimmer.trim(mLock, lScope.getTasks(), lScope.getDaemons(), aLevel);
+    	}
+    }
 
 	@Override
-	public void addChildDaemons(String aClass, Map<String, IDaemon> aDaemons) {
-		log("addChildTasks", "Storing child daemons from " + aClass);
-		
-		mChildDaemons.put(aClass, aDaemons);
+	public void addChildScope(String aId, ChildScope aScope) {
+		synchronized (mLock) {
+			log("addChildScope", "Storing child scope " + aId);
+			
+			mChildScopes.put(aId, aScope);
+		}
 	}
 
 	@Override
-	public Map<String, IDaemon> getChildDaemons(String aClass) {
-		log("getChildDaemons", "Returning child daemons to " + aClass);
-		
-		return mChildDaemons.remove(aClass);
+	public ChildScope getChildScope(String aId) {
+		synchronized (mLock) {
+			log("getChildScope", "Returning child scope " + aId);
+			
+			return mChildScopes.remove(aId);
+		}
 	}
 }
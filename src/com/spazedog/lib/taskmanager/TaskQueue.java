@@ -0,0 +1,126 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.util.ArrayList;
+
+public class TaskQueue {
+	/*
+	 * Keeps track of the Tasks that have been executed on a manager but has not yet 
+	 * reached doInBackground(), whether they wait for the Governor or for the AsyncTask executor. 
+	 * When a limit is set, the policy decides what happens to new Tasks once it is reached.
+	 */
+	
+	public final static String TAG = "TaskQueue";
+	
+	public final static Integer POLICY_FAIL = 0;
+	public final static Integer POLICY_CALLER_RUNS = 1;
+	public final static Integer POLICY_DROP_OLDEST = 2;
+	public final static Integer POLICY_DROP_LOWEST = 3;
+	
+	final static Integer QUEUED = 0;
+	final static Integer BYPASS = 1;
+	final static Integer DROPPED = 2;
+	
+	private final Object mLock = new Object();
+	
+	private Integer mLimit = 0;
+	private Integer mPolicy = POLICY_FAIL;
+	
+	private final ArrayList<Task<?, ?, ?>> mWaiting = new ArrayList<Task<?, ?, ?>>();
+	
+	private static void log(String aMethod, String aMessage) {
+		Utils.log(TAG, aMethod, aMessage);
+	}
+	
+	public void setLimit(Integer aLimit, Integer aPolicy) {
+		synchronized (mLock) {
+			mLimit = aLimit;
+			mPolicy = aPolicy;
+		}
+	}
+	
+	public Integer getLimit() {
+		return mLimit;
+	}
+	
+	public Integer getPolicy() {
+		return mPolicy;
+	}
+	
+	public Integer size() {
+		synchronized (mLock) {
+			return mWaiting.size();
+		}
+	}
+	
+	Integer offer(Task<?, ?, ?> aTask, String aTag) throws RejectedTaskException {
+		Task<?, ?, ?> lVictim = null;
+		
+		synchronized (mLock) {
+			if ((int) mLimit > 0 && mWaiting.size() >= mLimit) {
+				if (mPolicy == POLICY_CALLER_RUNS) {
+					log("offer", "[" + aTag + "] The queue is full, starting the task outside the queue");
+					
+					return BYPASS;
+					
+				} else if (mPolicy == POLICY_DROP_OLDEST) {
+					lVictim = mWaiting.remove(0);
+					
+				} else if (mPolicy == POLICY_DROP_LOWEST) {
+					Integer lIndex = -1;
+					
+					for (int i=0; i < mWaiting.size(); i++) {
+						if (mWaiting.get(i).getPriority() < (lIndex < 0 ? aTask.getPriority() : mWaiting.get(lIndex).getPriority())) {
+							lIndex = i;
+						}
+					}
+					
+					if (lIndex < 0) {
+						log("offer", "[" + aTag + "] The queue is full and this task has the lowest priority, dropping it");
+						
+						return DROPPED;
+					}
+					
+					lVictim = mWaiting.remove((int) lIndex);
+					
+				} else {
+					throw new RejectedTaskException("The task queue is full (" + mLimit + " waiting tasks), rejecting " + aTag);
+				}
+			}
+			
+			mWaiting.add(aTask);
+		}
+		
+		if (lVictim != null) {
+			log("offer", "[" + aTag + "] The queue is full, dropping an older waiting task");
+			
+			lVictim.cancel(false);
+		}
+		
+		return QUEUED;
+	}
+	
+	void remove(Task<?, ?, ?> aTask) {
+		synchronized (mLock) {
+			mWaiting.remove(aTask);
+		}
+	}
+}
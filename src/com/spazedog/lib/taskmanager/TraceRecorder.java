@@ -0,0 +1,284 @@
+/*
+ * This file is part of the TaskManager Project: https://github.com/spazedog/taskmanager
+ *  
+ * Copyright (c) 2013 Daniel Bergløv
+ *
+ * TaskManager is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * TaskManager is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with TaskManager. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.lib.taskmanager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Build;
+import android.os.Process;
+
+public final class TraceRecorder {
+	/*
+	 * Records Task and Daemon lifecycle events into a ring buffer that is allocated once when recording starts. 
+	 * Recording an event only writes a few array slots, and names are constants, so it can stay enabled in production builds. 
+	 * The buffer can be written to a file in the Chrome trace format, which both chrome://tracing and Perfetto can open.
+	 * 
+	 * Independently of the buffer, the same sections can be sent to android.os.Trace so that they 
+	 * show up in systrace and Perfetto system traces next to frame rendering and binder calls. 
+	 * That class was added in API 18, which is above the build target, so it is looked up using reflection.
+	 */
+	
+	public final static String TAG = "TraceRecorder";
+	
+	final static String CATEGORY_TASK = "Task";
+	final static String CATEGORY_DAEMON = "Daemon";
+	final static String CATEGORY_MANAGER = "Manager";
+	final static String CATEGORY_OBSERVER = "Observer";
+	
+	private final static char PHASE_BEGIN = 'B';
+	private final static char PHASE_END = 'E';
+	private final static char PHASE_INSTANT = 'i';
+	
+	private static volatile boolean sEnabled = false;
+	private static volatile boolean sSystemTrace = false;
+	
+	private final static int SECTION_LENGTH = 127;
+	
+	private final static int SDK_TRACE = 18;
+	
+	private static Method sBeginSection;
+	private static Method sEndSection;
+	
+	/*
+	 * Replaced as a whole by start(), so a recording thread that took the old buffer keeps writing into arrays of the size it expects
+	 */
+	private static volatile Buffer sBuffer;
+	
+	private TraceRecorder() {}
+	
+	public static void start(int aCapacity) {
+		synchronized (TraceRecorder.class) {
+			sEnabled = false;
+			
+			if (aCapacity <= 0) {
+				return;
+			}
+			
+			sBuffer = new Buffer(aCapacity);
+			sEnabled = true;
+		}
+	}
+	
+	public static void stop() {
+		sEnabled = false;
+	}
+	
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+	
+	/*
+	 * Sections must be balanced on each thread, so only change this while no Task or Daemon is running
+	 */
+	public static void setSystemTrace(boolean aEnabled) {
+		synchronized (TraceRecorder.class) {
+			if (aEnabled && sBeginSection == null && Build.VERSION.SDK_INT >= SDK_TRACE) {
+				try {
+					Class<?> lTrace = Class.forName("android.os.Trace");
+					
+					sBeginSection = lTrace.getMethod("beginSection", String.class);
+					sEndSection = lTrace.getMethod("endSection");
+					
+				} catch (Throwable e) {
+					Utils.log(TAG, "setSystemTrace", "android.os.Trace is not available: " + e.getMessage());
+					
+					sBeginSection = null;
+					sEndSection = null;
+				}
+			}
+			
+			sSystemTrace = aEnabled && sBeginSection != null;
+		}
+	}
+	
+	public static boolean isSystemTrace() {
+		return sSystemTrace;
+	}
+	
+	static void begin(String aCategory, String aName, String aTag) {
+		if (sEnabled) {
+			record(PHASE_BEGIN, aCategory, aName, aTag);
+		}
+		
+		if (sSystemTrace) {
+			beginSection(aCategory, aName, aTag);
+		}
+	}
+	
+	static void end(String aCategory, String aName, String aTag) {
+		if (sEnabled) {
+			record(PHASE_END, aCategory, aName, aTag);
+		}
+		
+		if (sSystemTrace) {
+			endSection();
+		}
+	}
+	
+	private static void beginSection(String aCategory, String aName, String aTag) {
+		String lSection = aCategory + "." + aName + (aTag != null ? " [" + aTag + "]" : "");
+		
+		try {
+			sBeginSection.invoke(null, lSection.length() > SECTION_LENGTH ? lSection.substring(0, SECTION_LENGTH) : lSection);
+			
+		} catch (Throwable e) {}
+	}
+	
+	private static void endSection() {
+		try {
+			sEndSection.invoke(null);
+			
+		} catch (Throwable e) {}
+	}
+	
+	static void instant(String aCategory, String aName, String aTag) {
+		if (sEnabled) {
+			record(PHASE_INSTANT, aCategory, aName, aTag);
+		}
+	}
+	
+	private static void record(char aPhase, String aCategory, String aName, String aTag) {
+		Buffer lBuffer = sBuffer;
+		
+		if (lBuffer != null) {
+			lBuffer.record(aPhase, aCategory, aName, aTag);
+		}
+	}
+	
+	/*
+	 * Recording is paused while the buffer is written, and resumed afterwards if it was running
+	 */
+	public static void dump(File aFile) throws IOException {
+		synchronized (TraceRecorder.class) {
+			boolean lEnabled = sEnabled;
+			sEnabled = false;
+			
+			Buffer lBuffer = sBuffer;
+			Writer lWriter = new BufferedWriter(new FileWriter(aFile));
+			
+			try {
+				long lCount = lBuffer != null ? lBuffer.mCursor.get() : 0;
+				long lFirst = lBuffer != null ? Math.max(0, lCount - lBuffer.mCapacity) : 0;
+				int lPid = Process.myPid();
+				
+				lWriter.write("{\"traceEvents\":[");
+				
+				for (long i=lFirst; i < lCount; i++) {
+					int lSlot = (int) (i % lBuffer.mCapacity);
+					
+					if (i > lFirst) {
+						lWriter.write(",");
+					}
+					
+					lWriter.write("\n{\"name\":");
+					quote(lWriter, lBuffer.mNames[lSlot]);
+					lWriter.write(",\"cat\":");
+					quote(lWriter, lBuffer.mCategories[lSlot]);
+					lWriter.write(",\"ph\":\"" + lBuffer.mPhases[lSlot] + "\"");
+					lWriter.write(",\"ts\":" + lBuffer.mTimes[lSlot]);
+					lWriter.write(",\"pid\":" + lPid);
+					lWriter.write(",\"tid\":" + lBuffer.mThreads[lSlot]);
+					
+					if (lBuffer.mPhases[lSlot] == PHASE_INSTANT) {
+						lWriter.write(",\"s\":\"t\"");
+					}
+					
+					if (lBuffer.mTags[lSlot] != null) {
+						lWriter.write(",\"args\":{\"tag\":");
+						quote(lWriter, lBuffer.mTags[lSlot]);
+						lWriter.write("}");
+					}
+					
+					lWriter.write("}");
+				}
+				
+				lWriter.write("\n]}\n");
+				
+			} finally {
+				lWriter.close();
+				
+				sEnabled = lEnabled;
+			}
+		}
+	}
+	
+	private static void quote(Writer aWriter, String aValue) throws IOException {
+		aWriter.write('"');
+		
+		if (aValue != null) {
+			for (int i=0; i < aValue.length(); i++) {
+				char lChar = aValue.charAt(i);
+				
+				if (lChar == '"' || lChar == '\\') {
+					aWriter.write('\\');
+					aWriter.write(lChar);
+					
+				} else if (lChar < 0x20) {
+					aWriter.write(String.format("\\u%04x", (int) lChar));
+					
+				} else {
+					aWriter.write(lChar);
+				}
+			}
+		}
+		
+		aWriter.write('"');
+	}
+	
+	private final static class Buffer {
+		private final int mCapacity;
+		
+		private final long[] mTimes;
+		private final long[] mThreads;
+		private final char[] mPhases;
+		private final String[] mCategories;
+		private final String[] mNames;
+		private final String[] mTags;
+		
+		private final AtomicLong mCursor = new AtomicLong();
+		
+		public Buffer(int aCapacity) {
+			mCapacity = aCapacity;
+			mTimes = new long[aCapacity];
+			mThreads = new long[aCapacity];
+			mPhases = new char[aCapacity];
+			mCategories = new String[aCapacity];
+			mNames = new String[aCapacity];
+			mTags = new String[aCapacity];
+		}
+		
+		public void record(char aPhase, String aCategory, String aName, String aTag) {
+			int lSlot = (int) (mCursor.getAndIncrement() % mCapacity);
+			
+			mTimes[lSlot] = System.nanoTime() / 1000;
+			mThreads[lSlot] = Thread.currentThread().getId();
+			mPhases[lSlot] = aPhase;
+			mCategories[lSlot] = aCategory;
+			mNames[lSlot] = aName;
+			mTags[lSlot] = aTag;
+		}
+	}
+}
@@ -22,17 +22,45 @@ package com.spazedog.lib.taskmanager;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 public class Utils {
 	public static Boolean LOG = true;
 	
+	private static Handler sHandler;
+	
 	public static void log(String aTag, String aMethod, String aMessage) {
 		if (LOG) {
 			Log.i("TaskManager." + aTag + "::" + aMethod, aMessage);
 		}
 	}
 	
+	public static Handler getHandler() {
+		synchronized (Utils.class) {
+			if (sHandler == null) {
+				sHandler = new Handler(Looper.getMainLooper());
+			}
+			
+			return sHandler;
+		}
+	}
+	
+	public static void runOnUiThread(Runnable aCode) {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			aCode.run();
+			
+		} else {
+			getHandler().post(aCode);
+		}
+	}
+	
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public static IManager getManager(android.app.Application aApplication) {
+		return ApplicationManager.getInstance(aApplication);
+	}
+	
 	public static IManager getManager(android.support.v4.app.Fragment aFragment) {
 		return buildSupportManager(aFragment, true);
 	}
@@ -43,12 +71,12 @@ public class Utils {
 	
 	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
 	public static IManager getManager(android.app.Fragment aFragment) {
-		return buildSupportManager(aFragment, true);
+		return buildManager(aFragment, true);
 	}
 	
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 	public static IManager getManager(android.app.Activity aActivity) {
-		return buildSupportManager(aActivity, false);
+		return buildManager(aActivity, false);
 	}
 
 	private static IManager buildSupportManager(Object object, Boolean fragment) {
@@ -85,7 +113,7 @@ public class Utils {
 			if (fragment) {
 				log("Utils", "buildManager", "Attching a new ChildManager to " + ((android.app.Fragment) object).getClass().getName());
 				
-				buildSupportManager(((android.app.Fragment) object).getActivity(), false);
+				buildManager(((android.app.Fragment) object).getActivity(), false);
 				
 				fm.beginTransaction().add((android.app.Fragment) (lManager = new ChildManager()), ChildManager.TAG).commit();
 				